@@ -0,0 +1,57 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Shared fixtures of the benchmarks.
+ */
+final class Benchmarks {
+
+    /**
+     * Discards the per-alias console output
+     */
+    static final Log QUIET = new Log(Log.Level.QUIET, Writer.nullWriter(), Writer.nullWriter());
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Build a keystore holding the given certificate files.
+     */
+    static Path keystore(final Path directory, final List<Path> files) throws Exception {
+        final Path keystore = directory.resolve("cacerts");
+        final KeyStoreHandler handler = new KeyStoreHandler(keystore.toString(), "changeit".toCharArray(), true,
+                new CertificateLoader(), QUIET, new RunReport(keystore.toString()));
+        for (final Path file : files) handler.addAlias("debian:" + file.getFileName(), file.toString());
+        handler.save();
+        return keystore;
+    }
+
+    static void delete(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+        }
+    }
+}
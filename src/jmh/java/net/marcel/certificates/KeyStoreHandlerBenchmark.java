@@ -0,0 +1,111 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.Certificate;
+import java.util.List;
+
+/**
+ * Benchmarks of {@link KeyStoreHandler} and {@link CertificateLoader} on
+ * keystores of synthetic certificates.
+ */
+@State(Scope.Benchmark)
+public class KeyStoreHandlerBenchmark {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @Param({"100", "1000", "10000"})
+    private int size;
+
+    /**
+     * Whether the keystore is loaded lazily, see {@link LazyKeyStore}.
+     */
+    @Param({"false", "true"})
+    private boolean lazy;
+
+    private Path directory;
+    private List<Path> files;
+    private String keystoreFile;
+    private KeyStoreHandler handler;
+    private Certificate extra;
+    private CertificateLoader loader;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("keystore-benchmark");
+        this.files = SyntheticCertificates.write(this.directory.resolve("certs"), this.size);
+        this.keystoreFile = Benchmarks.keystore(this.directory, this.files).toString();
+
+        this.loader = new CertificateLoader(null, Benchmarks.QUIET, new RunReport(this.keystoreFile));
+        this.handler = this.load();
+        this.extra = this.loader.load(SyntheticCertificates.write(this.directory.resolve("extra"), 1).get(0).toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Benchmarks.delete(this.directory);
+    }
+
+    /**
+     * Open the keystore, including the fingerprint index.
+     */
+    @Benchmark
+    public KeyStoreHandler load() throws Exception {
+        return new KeyStoreHandler(this.keystoreFile, PASSWORD, false, this.lazy, this.loader, Benchmarks.QUIET, new RunReport(this.keystoreFile));
+    }
+
+    /**
+     * Decode one PEM certificate file.
+     */
+    @Benchmark
+    public Certificate loadCertificate() throws Exception {
+        this.next = (this.next + 1) % this.files.size();
+        return this.loader.load(this.files.get(this.next).toString());
+    }
+
+    /**
+     * Add then remove one certificate in a keystore of the given size.
+     */
+    @Benchmark
+    public boolean addDeleteAlias() throws Exception {
+        this.handler.addAlias("debian:extra.crt", this.extra);
+        this.handler.deleteAlias("debian:extra.crt");
+        return this.handler.isDirty();
+    }
+
+    /**
+     * Serialize and write the keystore. An entry is added and removed first,
+     * otherwise nothing changed and save() would return right away.
+     */
+    @Benchmark
+    public void save() throws Exception {
+        this.handler.addAlias("debian:extra.crt", this.extra);
+        this.handler.deleteAlias("debian:extra.crt");
+        this.handler.save();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Generates self-signed CA certificates for the benchmarks, with nothing but
+ * the JDK : the certificates are DER encoded by hand and signed with one
+ * shared EC key.
+ */
+final class SyntheticCertificates {
+
+    private static final byte[] ECDSA_WITH_SHA256 = {0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x02};
+    private static final byte[] BASIC_CONSTRAINTS = {0x06, 0x03, 0x55, 0x1d, 0x13};
+    private static final DateTimeFormatter UTC_TIME = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'");
+
+    private SyntheticCertificates() {
+    }
+
+    /**
+     * Write count PEM certificates named synthetic-N.crt to directory,
+     * returns their paths.
+     */
+    static List<Path> write(final Path directory, final int count) throws IOException, GeneralSecurityException {
+        Files.createDirectories(directory);
+        final KeyPair keyPair = keyPair();
+        final List<Path> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Path file = directory.resolve("synthetic-" + i + ".crt");
+            Files.writeString(file, pem(generate(keyPair, i)), StandardCharsets.US_ASCII);
+            files.add(file);
+        }
+        return files;
+    }
+
+    static KeyPair keyPair() throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * DER encoding of a self-signed CA certificate, unique by index.
+     */
+    static byte[] generate(final KeyPair keyPair, final int index) throws GeneralSecurityException {
+        final byte[] name = new X500Principal("CN=Synthetic CA " + index + ", O=ca-certificates-java").getEncoded();
+        final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC).withNano(0);
+        final byte[] algorithm = tlv(0x30, ECDSA_WITH_SHA256);
+
+        final byte[] tbs = tlv(0x30,
+                tlv(0xa0, tlv(0x02, new byte[]{2})),
+                tlv(0x02, BigInteger.valueOf(index + 1L).toByteArray()),
+                algorithm,
+                name,
+                tlv(0x30, time(now.minusDays(1)), time(now.plusYears(10))),
+                name,
+                keyPair.getPublic().getEncoded(),
+                tlv(0xa3, tlv(0x30, tlv(0x30, BASIC_CONSTRAINTS, tlv(0x01, new byte[]{(byte) 0xff}),
+                        tlv(0x04, tlv(0x30, tlv(0x01, new byte[]{(byte) 0xff})))))));
+
+        final Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbs);
+        final byte[] signed = signature.sign();
+        final byte[] bits = new byte[signed.length + 1];
+        System.arraycopy(signed, 0, bits, 1, signed.length);
+
+        return tlv(0x30, tbs, algorithm, tlv(0x03, bits));
+    }
+
+    static String pem(final byte[] encoded) {
+        return "-----BEGIN CERTIFICATE-----\n"
+                + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(encoded)
+                + "\n-----END CERTIFICATE-----\n";
+    }
+
+    private static byte[] time(final ZonedDateTime time) {
+        return tlv(0x17, UTC_TIME.format(time).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] tlv(final int tag, final byte[]... contents) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (final byte[] part : contents) content.writeBytes(part);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        final int length = content.size();
+        if (length < 0x80) out.write(length);
+        else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else if (length < 0x10000) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(0x83);
+            out.write(length >> 16);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        out.writeBytes(content.toByteArray());
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.List;
+
+/**
+ * Startup cost of a trust store : open it and get one certificate, from the
+ * JKS keystore or from its {@link TrustSnapshot}.
+ */
+@State(Scope.Benchmark)
+public class TrustSnapshotBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int size;
+
+    private Path directory;
+    private Path keystore;
+    private Path snapshot;
+    private String alias;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("snapshot-benchmark");
+        final List<Path> files = SyntheticCertificates.write(this.directory.resolve("certs"), this.size);
+        this.keystore = Benchmarks.keystore(this.directory, files);
+        this.snapshot = this.directory.resolve("cacerts" + UpdateCertificates.SNAPSHOT_SUFFIX);
+        final KeyStoreHandler handler = new KeyStoreHandler(this.keystore.toString(), "changeit".toCharArray(), false,
+                new CertificateLoader(), Benchmarks.QUIET, new RunReport(this.keystore.toString()));
+        handler.setSnapshot(this.snapshot);
+        handler.save();
+        this.alias = "debian:" + files.get(files.size() / 2).getFileName();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Benchmarks.delete(this.directory);
+    }
+
+    @Benchmark
+    public Certificate jks() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream stream = Files.newInputStream(this.keystore)) {
+            keyStore.load(stream, "changeit".toCharArray());
+        }
+        return keyStore.getCertificate(this.alias);
+    }
+
+    @Benchmark
+    public Certificate snapshot() throws Exception {
+        return TrustSnapshot.open(this.snapshot).getCertificate(this.alias);
+    }
+}
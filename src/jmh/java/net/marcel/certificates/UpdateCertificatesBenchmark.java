@@ -0,0 +1,70 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * End to end benchmark of {@link UpdateCertificates#processChanges}: a
+ * "--clear" rebuild from synthetic certificates, then saving the keystore.
+ */
+@State(Scope.Benchmark)
+public class UpdateCertificatesBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int size;
+
+    @Param({"1", "4"})
+    private int jobs;
+
+    private Path directory;
+    private String keystoreFile;
+    private String changes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("update-benchmark");
+        final List<Path> files = SyntheticCertificates.write(this.directory.resolve("certs"), this.size);
+        this.keystoreFile = this.directory.resolve("cacerts").toString();
+        this.changes = files.stream().map(file -> "+" + file + "\n").collect(Collectors.joining());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Benchmarks.delete(this.directory);
+    }
+
+    @Benchmark
+    public void processChanges() throws Exception {
+        final UpdateCertificates.Options options = new UpdateCertificates.Options().clear(true).jobs(this.jobs).log(Benchmarks.QUIET);
+        final UpdateCertificates uc = new UpdateCertificates(this.keystoreFile, "changeit", options);
+        uc.processChanges(new StringReader(this.changes));
+        uc.finish();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Replaces files atomically : the content is written to a temporary file in
+ * the same directory, synced to disk and then renamed over the target. A
+ * concurrent reader sees either the old or the new file, never a partial one.
+ */
+final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    static void write(final Path target, final byte[] content) throws IOException {
+        write(target, ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Replace target with the remaining bytes of content. Symbolic links are
+     * followed, so the file they point to is replaced and not the link. The
+     * permissions and ownership of an existing file are kept.
+     */
+    static void write(final Path target, final ByteBuffer content) throws IOException {
+        final Path file = resolve(target);
+        final Path temp = createTemp(file);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (content.hasRemaining()) channel.write(content);
+                channel.force(true);
+            }
+            replace(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The file actually written for target : the destination of a symbolic
+     * link, or target itself.
+     */
+    static Path resolve(final Path target) throws IOException {
+        final Path file = Files.exists(target) ? target.toRealPath() : target.toAbsolutePath();
+        if (Files.isDirectory(file)) throw new FileSystemException(file.toString(), null, "Is a directory");
+        return file;
+    }
+
+    /**
+     * Create an empty temporary file next to the resolved file, with its
+     * permissions and ownership. The caller writes and syncs it, then moves
+     * it in place with {@link #replace(Path, Path)} or deletes it.
+     */
+    static Path createTemp(final Path file) throws IOException {
+        final Path temp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            copyAttributes(file, temp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * Atomically move a synced temporary file over the resolved file.
+     */
+    static void replace(final Path temp, final Path file) throws IOException {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getParent());
+    }
+
+    private static void copyAttributes(final Path from, final Path to) throws IOException {
+        final PosixFileAttributeView target = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (target == null) return;
+
+        if (!Files.exists(from)) {
+            // Temporary files are created private, use the usual mode of a new file instead
+            target.setPermissions(PosixFilePermissions.fromString("rw-r--r--"));
+            return;
+        }
+
+        final PosixFileAttributes attributes = Files.readAttributes(from, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        target.setPermissions(attributes.permissions());
+        try {
+            target.setGroup(attributes.group());
+            target.setOwner(attributes.owner());
+        } catch (FileSystemException e) {
+            // Only root may give files away, keep the current owner then
+        }
+    }
+
+    /**
+     * Make the rename durable. Not every platform can sync a directory, in
+     * that case the rename is still atomic, just not guaranteed on disk yet.
+     */
+    static void syncDirectory(final Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of decoded certificate files. Entries are keyed by the
+ * absolute path of the certificate file and only used while its content is
+ * unchanged : the file is still read and its SHA-256 compared, as size and
+ * modification time are kept by builds pinning them. This saves decoding,
+ * not reading. A missing, corrupt or outdated cache file is treated as an
+ * empty cache.
+ */
+class CertificateCache {
+
+    private static final int MAGIC = 0x43414348; // "CACH"
+    private static final int VERSION = 2;
+    private static final int MAX_ENCODED_LENGTH = 1 << 20;
+
+    private final Path file;
+    private final Log log;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    CertificateCache(final Path file) {
+        this(file, Log.console());
+    }
+
+    CertificateCache(final Path file, final Log log) {
+        this.file = file;
+        this.log = log;
+        this.load();
+    }
+
+    /**
+     * Returns the cached entry of the certificate file with the given
+     * content, or null when the file is not cached or was changed since.
+     */
+    Entry get(final Path path, final byte[] content) {
+        final Entry entry = this.entries.get(key(path));
+        if (entry == null || !entry.matches(content)) return null;
+        return entry;
+    }
+
+    void put(final Path path, final byte[] content, final byte[] encoded) {
+        this.entries.put(key(path), new Entry(content.length, Fingerprint.of(content), encoded, Fingerprint.of(encoded)));
+        this.modified = true;
+    }
+
+    int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Drop the entries of files which were removed or changed size since
+     * they were cached. Other changes are only noticed when the file is read
+     * again.
+     */
+    void compact() {
+        this.entries.entrySet().removeIf(e -> {
+            try {
+                if (Files.readAttributes(Path.of(e.getKey()), BasicFileAttributes.class).size() == e.getValue().size) return false;
+            } catch (IOException ignored) {
+                // Gone or unreadable
+            }
+            this.modified = true;
+            return true;
+        });
+    }
+
+    /**
+     * Compact then write the cache back to disk when it changed.
+     */
+    synchronized void save() throws IOException {
+        this.compact();
+        if (!this.modified) return;
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.entries.size());
+            for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeUTF(entry.source);
+                out.writeUTF(entry.fingerprint);
+                out.writeInt(entry.encoded.length);
+                out.write(entry.encoded);
+            }
+        }
+        Files.createDirectories(this.file.toAbsolutePath().getParent());
+        AtomicFiles.write(this.file, buffer.toByteArray());
+        this.modified = false;
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("unknown format");
+            if (in.readInt() != VERSION) {
+                // Written by an older version, rebuilt from scratch
+                this.modified = true;
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final String source = in.readUTF();
+                final String fingerprint = in.readUTF();
+                final int length = in.readInt();
+                if (length < 0 || length > MAX_ENCODED_LENGTH) throw new IOException("corrupt entry for " + path);
+                final byte[] encoded = new byte[length];
+                in.readFully(encoded);
+
+                if (!fingerprint.equals(Fingerprint.of(encoded))) throw new IOException("corrupt entry for " + path);
+                this.entries.put(path, new Entry(size, source, encoded, fingerprint));
+            }
+        } catch (NoSuchFileException e) {
+            // First run, start with an empty cache
+        } catch (IOException | RuntimeException e) {
+            this.log.warn("Warning: ignoring unusable certificate cache " + this.file + ". Message:\n  " + e.getMessage());
+            this.entries.clear();
+            this.modified = true;
+        }
+    }
+
+    private static String key(final Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * The encoded (DER) certificate of a file with the given size and
+     * SHA-256 of its content.
+     */
+    static final class Entry {
+
+        private final long size;
+        private final String source;
+        private final byte[] encoded;
+        private final String fingerprint;
+
+        private Entry(final long size, final String source, final byte[] encoded, final String fingerprint) {
+            this.size = size;
+            this.source = source;
+            this.encoded = encoded;
+            this.fingerprint = fingerprint;
+        }
+
+        private boolean matches(final byte[] content) {
+            return content.length == this.size && Fingerprint.of(content).equals(this.source);
+        }
+
+        byte[] getEncoded() {
+            return this.encoded;
+        }
+
+        String getFingerprint() {
+            return this.fingerprint;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Torsten Werner <twerner@debian.org>
+ * Copyright (C) 2012 Damien Raude-Morvan <drazzib@debian.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.nio.file.Path;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * A single "+path" or "-path" change read from the input, or a certificate
+ * whose encoding was read from somewhere else than its own file (e.g. from
+ * a bundle).
+ */
+final class CertificateChange {
+
+    static final String ALIAS_PREFIX = "debian:";
+    static final String BUNDLE_ALIAS_PREFIX = "bundle:";
+
+    enum Type {
+        ADD, REMOVE
+    }
+
+    private final Type type;
+    private final String path;
+    private final String filename;
+    private final String alias;
+    private final byte[] encoded;
+
+    CertificateChange(final Type type, final String path) {
+        this.type = type;
+        this.path = path;
+        this.filename = path.substring(path.lastIndexOf("/") + 1);
+        this.alias = aliasOf(this.filename);
+        this.encoded = null;
+    }
+
+    private CertificateChange(final Type type, final String source, final String alias, final byte[] encoded) {
+        this.type = type;
+        this.path = source;
+        this.filename = null;
+        this.alias = alias;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Add the given DER or PEM encoded certificate. Source only describes
+     * where it came from, and a null alias is derived from the certificate,
+     * see {@link #bundleAliasOf(Certificate)}.
+     */
+    static CertificateChange inline(final String source, final String alias, final byte[] encoded) {
+        return new CertificateChange(Type.ADD, source, alias, encoded);
+    }
+
+    /**
+     * Remove the entry with the given alias, as it is.
+     */
+    static CertificateChange removal(final String alias) {
+        return new CertificateChange(Type.REMOVE, alias, alias, null);
+    }
+
+    /**
+     * A stable alias for a certificate without file name : its subject common
+     * name (or the whole subject) followed by the start of its fingerprint.
+     */
+    static String bundleAliasOf(final Certificate cert) throws CertificateEncodingException {
+        String name = "";
+        if (cert instanceof X509Certificate) {
+            final String subject = ((X509Certificate) cert).getSubjectX500Principal().getName();
+            name = subject;
+            try {
+                for (final Rdn rdn : new LdapName(subject).getRdns()) {
+                    if (rdn.getType().equalsIgnoreCase("CN")) name = rdn.getValue().toString();
+                }
+            } catch (InvalidNameException e) {
+                // Keep the whole subject
+            }
+        }
+
+        final String slug = name.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9]+", "-").replaceAll("^-|-$", "");
+        return BUNDLE_ALIAS_PREFIX + (slug.isEmpty() ? "" : slug + ":") + Fingerprint.of(cert).substring(0, 16);
+    }
+
+    /**
+     * The keystore alias of a certificate file name.
+     */
+    static String aliasOf(final String filename) {
+        return ALIAS_PREFIX + filename;
+    }
+
+    /**
+     * Parse an input line, returns null for blank lines.
+     */
+    static CertificateChange parse(final String line) throws UnknownInputException {
+        if (line.isBlank()) return null;
+
+        if (line.startsWith("+")) return new CertificateChange(Type.ADD, line.substring(1));
+        else if (line.startsWith("-")) return new CertificateChange(Type.REMOVE, line.substring(1));
+        else throw new UnknownInputException(line);
+    }
+
+    /**
+     * The input line of this change with an absolute path, so it can be
+     * parsed again from another working directory.
+     */
+    String toLine() {
+        if (this.filename == null) throw new IllegalStateException("Only changes of a file have an input line");
+        return (this.type == Type.ADD ? "+" : "-") + Path.of(this.path).toAbsolutePath();
+    }
+
+    Type getType() {
+        return this.type;
+    }
+
+    /**
+     * The certificate file, or where an inline certificate came from.
+     */
+    String getPath() {
+        return this.path;
+    }
+
+    /**
+     * The last path segment, which is also the legacy (non "debian:") alias.
+     * Null for inline certificates and removals by alias.
+     */
+    String getFilename() {
+        return this.filename;
+    }
+
+    /**
+     * The alias to use, null when it has to be derived from the certificate.
+     */
+    String getAlias() {
+        return this.alias;
+    }
+
+    /**
+     * The alias to use for the given decoded certificate of this change.
+     */
+    String aliasFor(final Certificate cert) throws CertificateEncodingException {
+        return this.alias != null ? this.alias : bundleAliasOf(cert);
+    }
+
+    /**
+     * The encoded certificate of an inline change, null when it has to be
+     * read from {@link #getPath()}.
+     */
+    byte[] getEncoded() {
+        return this.encoded;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.util.List;
+
+/**
+ * Provides the "CADIR" keystore type : the certificate files of a directory,
+ * /etc/ssl/certs by default, as a read-only keystore of trusted certificates
+ * which needs no rewriting when the directory changes (see
+ * {@link DirectoryKeyStore}).
+ * <p>
+ * The provider is registered as a service, list it in the java.security file
+ * under the next free number (e.g. {@code security.provider.13=CADIR}) and set
+ * {@code javax.net.ssl.trustStoreType=CADIR}. With
+ * {@code javax.net.ssl.trustStore=NONE} the default directory is used,
+ * otherwise the trust store file lists the directories, one per line.
+ * Programs can also load the keystore with {@link Directories}.
+ */
+public final class CertificateDirectoryProvider extends Provider {
+
+    private static final long serialVersionUID = 1L;
+
+    public CertificateDirectoryProvider() {
+        super(DirectoryKeyStore.TYPE, "1.0", "Read-only keystore of a certificate directory");
+        this.putService(new Service(this, "KeyStore", DirectoryKeyStore.TYPE, DirectoryKeyStore.class.getName(), null, null) {
+            @Override
+            public Object newInstance(final Object constructorParameter) {
+                return new DirectoryKeyStore();
+            }
+        });
+    }
+
+    /**
+     * The directories to load a "CADIR" keystore from, the first one wins
+     * when several hold the same file name.
+     */
+    public static final class Directories implements KeyStore.LoadStoreParameter {
+
+        private final List<Path> directories;
+
+        public Directories(final Path... directories) {
+            this.directories = List.of(directories);
+        }
+
+        public List<Path> getDirectories() {
+            return this.directories;
+        }
+
+        @Override
+        public KeyStore.ProtectionParameter getProtectionParameter() {
+            return null;
+        }
+    }
+}
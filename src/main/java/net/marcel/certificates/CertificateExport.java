@@ -0,0 +1,157 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.stream.Stream;
+
+/**
+ * Writes trusted certificates in the layouts OpenSSL reads, next to the
+ * keystore : a PEM bundle, and a hashed directory holding one PEM file per
+ * certificate with "&lt;subject hash&gt;.N" links to them (see
+ * {@link SubjectHash}). An output is only written when its content changes,
+ * and is replaced atomically : the bundle like the keystore, the directory
+ * by switching a symbolic link to a sibling directory named after the digest
+ * of its content.
+ */
+final class CertificateExport {
+
+    private CertificateExport() {
+    }
+
+    /**
+     * Write the certificates, by alias, as one PEM bundle. Returns false
+     * when the file already had this content.
+     */
+    static boolean writeBundle(final Path file, final SortedMap<String, X509Certificate> certificates) throws IOException, CertificateEncodingException {
+        final ByteBuffer content = ByteBuffer.wrap(bundle(certificates));
+        if (Files.isRegularFile(file) && Files.size(file) == content.remaining()
+                && Arrays.equals(Files.readAllBytes(file), content.array())) return false;
+        AtomicFiles.write(file, content);
+        return true;
+    }
+
+    private static byte[] bundle(final SortedMap<String, X509Certificate> certificates) throws CertificateEncodingException {
+        final ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        for (final X509Certificate cert : certificates.values()) bundle.writeBytes(Pem.encode(cert.getEncoded()));
+        return bundle.toByteArray();
+    }
+
+    /**
+     * Write the certificates, by alias, as a hashed directory. The same
+     * certificate under several aliases is written once. Returns false when
+     * the directory already had this content.
+     */
+    static boolean writeHashed(final Path directory, final SortedMap<String, X509Certificate> certificates) throws IOException, CertificateEncodingException {
+        // PEM file name and content, then the links to them
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+        final Map<String, String> links = new LinkedHashMap<>();
+        final Map<String, Integer> hashes = new HashMap<>();
+        final Set<String> fingerprints = new HashSet<>();
+        final MessageDigest digest = Fingerprint.digest();
+        for (final Map.Entry<String, X509Certificate> e : certificates.entrySet()) {
+            final byte[] encoded = e.getValue().getEncoded();
+            if (!fingerprints.add(Fingerprint.of(encoded))) continue;
+
+            final String name = fileName(e.getKey(), files.keySet());
+            files.put(name, Pem.encode(encoded));
+            final String hash = SubjectHash.of(e.getValue().getSubjectX500Principal());
+            final int index = hashes.merge(hash, 1, Integer::sum) - 1;
+            links.put(hash + "." + index, name);
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(encoded);
+        }
+
+        final String version = "." + directory.getFileName() + "-" + Fingerprint.hex(digest.digest()).substring(0, 16);
+        Path previous = null;
+        if (Files.isSymbolicLink(directory)) {
+            previous = Files.readSymbolicLink(directory);
+            if (previous.toString().equals(version) && Files.isDirectory(directory)) return false;
+        } else if (Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " is not a link to a directory written by this tool");
+        }
+
+        final Path target = directory.resolveSibling(version);
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) delete(target);
+        Files.createDirectories(target);
+        for (final Map.Entry<String, byte[]> e : files.entrySet()) {
+            try (FileChannel channel = FileChannel.open(target.resolve(e.getKey()), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(e.getValue()));
+                channel.force(true);
+            }
+        }
+        for (final Map.Entry<String, String> e : links.entrySet()) {
+            Files.createSymbolicLink(target.resolve(e.getKey()), Path.of(e.getValue()));
+        }
+        AtomicFiles.syncDirectory(target);
+
+        final Path link = directory.resolveSibling(version + ".link");
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, Path.of(version));
+        Files.move(link, directory, StandardCopyOption.ATOMIC_MOVE);
+        AtomicFiles.syncDirectory(directory.toAbsolutePath().getParent());
+
+        if (previous != null && !previous.toString().equals(version) && !previous.isAbsolute() && previous.getNameCount() == 1 && previous.toString().startsWith("." + directory.getFileName() + "-")) {
+            delete(directory.resolveSibling(previous));
+        }
+        return true;
+    }
+
+    /**
+     * A PEM file name for alias, without its "debian:" prefix and unique
+     * among taken.
+     */
+    static String fileName(final String alias, final Set<String> taken) {
+        String base = alias.startsWith(CertificateChange.ALIAS_PREFIX) ? alias.substring(CertificateChange.ALIAS_PREFIX.length()) : alias;
+        final String lower = base.toLowerCase(Locale.ENGLISH);
+        if (lower.endsWith(".crt") || lower.endsWith(".pem")) base = base.substring(0, base.length() - 4);
+        base = base.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (base.isEmpty() || base.startsWith(".")) base = "_" + base;
+
+        String name = base + ".pem";
+        for (int i = 2; taken.contains(name); i++) name = base + "_" + i + ".pem";
+        return name;
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+        }
+    }
+}
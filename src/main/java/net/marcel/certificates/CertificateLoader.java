@@ -0,0 +1,231 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes certificate files. Safe to share between threads, every thread
+ * gets its own {@link CertificateFactory}. With a {@link CertificateCache}
+ * unchanged files are decoded from their cached DER encoding instead.
+ * <p>
+ * A shared loader, used to update several keystores with the same changes,
+ * also keeps every certificate it decoded : each file or encoding is then
+ * decoded only once, whichever keystore asks first.
+ */
+class CertificateLoader {
+
+    private final CertificateCache cache;
+    private final Log log;
+    private final RunReport report;
+
+    /**
+     * Decoded certificates by path and by fingerprint of their encoding,
+     * null unless the loader is shared
+     */
+    private final Map<String, Certificate> byPath;
+    private final Map<String, Certificate> byFingerprint;
+
+    private final ThreadLocal<CertificateFactory> certFactory = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new IllegalStateException("No X.509 certificate factory available.", e);
+        }
+    });
+
+    CertificateLoader() {
+        this(null);
+    }
+
+    CertificateLoader(final CertificateCache cache) {
+        this(cache, Log.console(), new RunReport(""));
+    }
+
+    CertificateLoader(final CertificateCache cache, final Log log, final RunReport report) {
+        this(cache, log, report, false);
+    }
+
+    CertificateLoader(final CertificateCache cache, final Log log, final RunReport report, final boolean shared) {
+        this.cache = cache;
+        this.log = log;
+        this.report = report;
+        this.byPath = shared ? new ConcurrentHashMap<>() : null;
+        this.byFingerprint = shared ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Decode the certificate stored at the given path.
+     */
+    Certificate load(final String path) throws IOException, CertificateException {
+        if (this.byPath == null) return this.read(path);
+        return memoize(this.byPath, path, () -> this.read(path));
+    }
+
+    private Certificate read(final String path) throws IOException, CertificateException {
+        if (this.cache == null) {
+            final byte[] content;
+            try (InputStream inputStream = new FileInputStream(path)) {
+                content = inputStream.readAllBytes();
+            }
+            this.report.bytesRead(content.length);
+            return this.decode(new ByteArrayInputStream(content));
+        }
+
+        final Path file = Path.of(path);
+        final byte[] content = Files.readAllBytes(file);
+        this.report.bytesRead(content.length);
+        final CertificateCache.Entry entry = this.cache.get(file, content);
+        if (entry != null) return this.decode(new ByteArrayInputStream(entry.getEncoded()));
+
+        final Certificate cert = this.decode(new ByteArrayInputStream(content));
+        this.cache.put(file, content, cert.getEncoded());
+        return cert;
+    }
+
+    /**
+     * Returns the fingerprint of the certificate stored at the given path when
+     * it is known without decoding the file, otherwise null.
+     */
+    String cachedFingerprint(final String path) {
+        final Certificate decoded = this.byPath == null ? null : this.byPath.get(path);
+        if (decoded != null) {
+            try {
+                return Fingerprint.of(decoded);
+            } catch (CertificateEncodingException e) {
+                return null;
+            }
+        }
+
+        final CertificateCache.Entry entry = this.cached(path);
+        return entry == null ? null : entry.getFingerprint();
+    }
+
+    /**
+     * Returns the cached encoding and fingerprint of the certificate stored
+     * at the given path when the file is unchanged since it was cached,
+     * otherwise null. The file is read to check it, but not decoded.
+     */
+    CertificateCache.Entry cached(final String path) {
+        if (this.cache == null) return null;
+        try {
+            final Path file = Path.of(path);
+            final byte[] content = Files.readAllBytes(file);
+            this.report.bytesRead(content.length);
+            return this.cache.get(file, content);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the certificate stored at the given path
+     * without decoding it as X.509, or null when it cannot be read.
+     */
+    String fingerprint(final String path) {
+        final String cached = this.cachedFingerprint(path);
+        if (cached != null) return cached;
+        try {
+            final byte[] content = Files.readAllBytes(Path.of(path));
+            this.report.bytesRead(content.length);
+            final byte[] encoded = Pem.firstCertificate(content);
+            return encoded == null ? null : Fingerprint.of(encoded);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write back the cache, if any.
+     */
+    void saveCache() {
+        if (this.cache == null) return;
+        try {
+            this.cache.save();
+        } catch (IOException e) {
+            this.log.warn("Warning: there was a problem saving the certificate cache. Message:\n  " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a DER or PEM encoded certificate.
+     */
+    Certificate decode(final byte[] encoded) throws CertificateException {
+        if (this.byFingerprint == null) return this.decode(new ByteArrayInputStream(encoded));
+        try {
+            return memoize(this.byFingerprint, Fingerprint.of(encoded), () -> this.decode(new ByteArrayInputStream(encoded)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Certificate decode(final InputStream inputStream) throws CertificateException {
+        final long start = System.nanoTime();
+        try {
+            return this.certFactory.get().generateCertificate(inputStream);
+        } finally {
+            this.report.add(RunReport.Phase.DECODE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the certificate known under key, decoding it first if needed.
+     * Concurrent callers wait for the first one, failures are not kept.
+     */
+    private static Certificate memoize(final Map<String, Certificate> decoded, final String key, final Decoder decoder) throws IOException, CertificateException {
+        try {
+            return decoded.computeIfAbsent(key, k -> {
+                try {
+                    return decoder.decode();
+                } catch (IOException | CertificateException e) {
+                    throw new DecodingFailure(e);
+                }
+            });
+        } catch (DecodingFailure e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw (CertificateException) e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Decoder {
+        Certificate decode() throws IOException, CertificateException;
+    }
+
+    /**
+     * Carries a checked exception out of {@link Map#computeIfAbsent}.
+     */
+    private static final class DecodingFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private DecodingFailure(final Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks certificates before they are trusted : they must be within their
+ * validity window and, optionally, be self-signed and carry CA basic
+ * constraints. Safe to share between threads. The signature and constraints
+ * results are cached by fingerprint, the validity window is cheap and checked
+ * against the current time on every call.
+ */
+class CertificateValidator {
+
+    private final ValidationPolicy policy;
+    private final boolean requireSelfSigned;
+    private final boolean requireCa;
+
+    /**
+     * Problem found by the cached checks, empty for none, by fingerprint
+     */
+    private final Map<String, String> checked = new ConcurrentHashMap<>();
+
+    CertificateValidator(final ValidationPolicy policy, final boolean requireSelfSigned, final boolean requireCa) {
+        this.policy = policy;
+        this.requireSelfSigned = requireSelfSigned;
+        this.requireCa = requireCa;
+    }
+
+    ValidationPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Returns why the certificate should not be trusted, or null.
+     */
+    String problem(final Certificate cert) throws CertificateEncodingException {
+        return this.problem(cert, Fingerprint.of(cert));
+    }
+
+    /**
+     * Returns why the certificate with the given fingerprint should not be
+     * trusted, or null.
+     */
+    String problem(final Certificate cert, final String fingerprint) {
+        if (!(cert instanceof X509Certificate)) return null;
+        final X509Certificate x509 = (X509Certificate) cert;
+        try {
+            x509.checkValidity();
+        } catch (CertificateExpiredException e) {
+            return "expired on " + x509.getNotAfter().toInstant();
+        } catch (CertificateNotYetValidException e) {
+            return "not valid before " + x509.getNotBefore().toInstant();
+        }
+
+        final String problem = this.checked.computeIfAbsent(fingerprint, f -> this.check(x509));
+        return problem.isEmpty() ? null : problem;
+    }
+
+    /**
+     * Check the given certificates in parallel, returns the problem of each
+     * failing one by alias.
+     */
+    Map<String, String> problems(final Map<String, Certificate> certificates) {
+        final Map<String, String> problems = new ConcurrentHashMap<>();
+        certificates.entrySet().parallelStream().forEach(e -> {
+            try {
+                final String problem = this.problem(e.getValue());
+                if (problem != null) problems.put(e.getKey(), problem);
+            } catch (CertificateEncodingException ex) {
+                problems.put(e.getKey(), "cannot be encoded");
+            }
+        });
+        return new TreeMap<>(problems);
+    }
+
+    private String check(final X509Certificate cert) {
+        if (this.requireCa && cert.getBasicConstraints() < 0) return "not a CA certificate";
+        if (this.requireSelfSigned) {
+            if (!cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) return "not self-signed";
+            try {
+                cert.verify(cert.getPublicKey());
+            } catch (GeneralSecurityException e) {
+                return "invalid self-signature";
+            }
+        }
+        return "";
+    }
+}
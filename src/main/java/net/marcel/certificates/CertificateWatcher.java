@@ -0,0 +1,277 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a keystore in line with certificate directories. File system events
+ * are collected until the directories were quiet for a while, coalesced to
+ * one change per alias, and then applied and saved as one batch. Like
+ * {@link UpdateCertificates#reconcile}, an alias provided by several files
+ * gets the one of the first directory, so the watcher keeps an index of the
+ * files providing each alias. The
+ * keystore stays loaded in between. A failing batch is reported and watching
+ * goes on, and a watched directory which does not exist yet, or was deleted,
+ * is watched once it is created.
+ */
+class CertificateWatcher implements Closeable {
+
+    /**
+     * Default time without events before a batch is applied, in milliseconds
+     */
+    static final long DEFAULT_QUIET_PERIOD = 500;
+
+    /**
+     * Longest time a batch may be held back by a steady stream of events
+     */
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * How often watched directories which do not exist are looked for
+     */
+    private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final TrustStore store;
+    private final List<Path> directories;
+    private final long quietPeriod;
+    private final Log log;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+
+    /**
+     * The certificate files providing each alias, in lower case, the one
+     * reconcile picks first
+     */
+    private final Map<String, NavigableSet<Path>> providers = new HashMap<>();
+    private final Comparator<Path> precedence = Comparator.<Path>comparingInt(this::rank).thenComparing(Comparator.naturalOrder());
+
+    CertificateWatcher(final TrustStore store, final List<Path> directories, final long quietPeriod, final Log log) throws IOException {
+        this.store = store;
+        this.directories = List.copyOf(directories);
+        this.quietPeriod = quietPeriod;
+        this.log = log;
+        this.watchService = directories.get(0).getFileSystem().newWatchService();
+        for (final Path directory : directories) {
+            try {
+                this.register(directory);
+            } catch (NoSuchFileException e) {
+                // Picked up once it is created, see watchAgain
+                this.log.info("Waiting for " + directory + " to be created");
+            }
+        }
+        this.index();
+    }
+
+    /**
+     * Watch until {@link #close()} is called.
+     */
+    void run() throws InterruptedException {
+        try {
+            while (true) {
+                final Set<String> batch = new LinkedHashSet<>();
+                final WatchKey first = this.isWatchingAll() ? this.watchService.take() : this.watchService.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                boolean rescan;
+                if (first != null) rescan = this.collect(first, batch);
+                else if (this.watchAgain()) rescan = true;
+                else continue;
+
+                final long deadline = System.currentTimeMillis() + Math.max(MAX_DELAY, this.quietPeriod);
+                long remaining;
+                WatchKey key;
+                while ((remaining = deadline - System.currentTimeMillis()) > 0
+                        && (key = this.watchService.poll(Math.min(this.quietPeriod, remaining), TimeUnit.MILLISECONDS)) != null) {
+                    rescan |= this.collect(key, batch);
+                }
+
+                this.apply(batch, rescan);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed, we are done
+        }
+    }
+
+    /**
+     * Add the aliases changed by the events of a key to the batch, and keep
+     * the index up to date. Returns true when events were lost or a directory
+     * appeared or vanished, the directories then have to be reconciled as a
+     * whole.
+     */
+    private boolean collect(final WatchKey key, final Set<String> batch) {
+        boolean rescan = false;
+        final Path directory = this.keys.get(key);
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                rescan = true;
+                continue;
+            }
+
+            final Path file = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)) {
+                this.tryRegister(file);
+                rescan = true;
+            } else if (UpdateCertificates.hasCertificateExtension(file)) {
+                // Like reconcile, a bundle is no certificate
+                this.provide(file, event.kind() != StandardWatchEventKinds.ENTRY_DELETE && UpdateCertificates.isCertificateFile(file));
+                batch.add(UpdateCertificates.managedAliasOf(file));
+            }
+        }
+
+        if (!key.reset()) {
+            this.keys.remove(key);
+            rescan = true;
+        }
+        return rescan;
+    }
+
+    /**
+     * Apply a batch as one update of the store, see {@link TrustStore}. Each
+     * changed alias gets the file which provides it first, or is removed when
+     * none does anymore. Like reconcile, a removal only touches the managed
+     * alias. Failures are reported and watching goes on, the next rescan
+     * catches up with what was missed.
+     */
+    private void apply(final Set<String> batch, final boolean rescan) throws InterruptedException {
+        try {
+            if (rescan) {
+                this.log.debug("Reconciling " + this.directories);
+                this.index();
+                this.store.reconcile(this.directories);
+            } else {
+                this.log.debug("Applying " + batch.size() + " changes");
+                final List<CertificateChange> changes = new ArrayList<>();
+                for (final String alias : batch) {
+                    final NavigableSet<Path> files = this.providers.get(alias);
+                    changes.add(files != null ? new CertificateChange(CertificateChange.Type.ADD, files.first().toString()) : CertificateChange.removal(alias));
+                }
+                this.store.update(uc -> uc.applyAll(changes));
+            }
+        } catch (UnableToSaveKeystoreException e) {
+            // The store keeps the changes, they are written with the next batch
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            this.log.warn("Warning: " + e.getMessage() + " Message:\n  " + cause.getMessage());
+        } catch (IOException | GeneralSecurityException | InvalidKeystorePasswordException e) {
+            this.log.warn("Warning: could not update " + this.store.getKeystorePath() + ". Message:\n  " + e.getMessage());
+        }
+        this.log.flush();
+    }
+
+    /**
+     * Build the index from the files of the directories.
+     */
+    private void index() throws IOException {
+        this.providers.clear();
+        for (final List<Path> files : UpdateCertificates.scan(this.directories)) {
+            for (final Path file : files) this.provide(file, true);
+        }
+    }
+
+    private void provide(final Path file, final boolean present) {
+        final String alias = UpdateCertificates.managedAliasOf(file);
+        if (present) {
+            this.providers.computeIfAbsent(alias, a -> new TreeSet<>(this.precedence)).add(file);
+        } else {
+            final NavigableSet<Path> files = this.providers.get(alias);
+            if (files != null && files.remove(file) && files.isEmpty()) this.providers.remove(alias);
+        }
+    }
+
+    /**
+     * The position of the first watched directory holding the file.
+     */
+    private int rank(final Path file) {
+        for (int i = 0; i < this.directories.size(); i++) {
+            if (file.startsWith(this.directories.get(i))) return i;
+        }
+        return this.directories.size();
+    }
+
+    private boolean isWatchingAll() {
+        for (final Path directory : this.directories) {
+            if (!this.keys.containsValue(directory)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Watch the directories which were created since, returns true when
+     * there was one.
+     */
+    private boolean watchAgain() {
+        boolean watched = false;
+        for (final Path directory : this.directories) {
+            if (!this.keys.containsValue(directory) && Files.isDirectory(directory)) {
+                this.tryRegister(directory);
+                watched = true;
+            }
+        }
+        return watched;
+    }
+
+    /**
+     * Watch a directory which may already be gone again.
+     */
+    private void tryRegister(final Path directory) {
+        try {
+            this.register(directory);
+        } catch (IOException e) {
+            this.log.debug("Not watching " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private void register(final Path directory) throws IOException {
+        try (Stream<Path> tree = Files.walk(directory, FileVisitOption.FOLLOW_LINKS)) {
+            for (final Path path : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator) {
+                this.keys.put(path.register(this.watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY), path);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The net effect of a stream of "+path" and "-path" changes : only the last
+ * change of every alias is kept, so a certificate removed then added again,
+ * or added then removed, costs at most one decode and one keystore change.
+ * The planned changes keep the order of the last change of each alias.
+ */
+final class ChangePlan {
+
+    /**
+     * The planned change of every alias, by normalized alias
+     */
+    private final Map<String, Planned> changes = new LinkedHashMap<>();
+    private int received;
+
+    /**
+     * Plan a change of a certificate file, replacing the previous change of
+     * the same alias.
+     */
+    void add(final CertificateChange change) {
+        if (change.getFilename() == null) throw new IllegalArgumentException("Only changes of a file can be planned");
+        this.received++;
+
+        final String alias = change.getAlias().toLowerCase(Locale.ENGLISH);
+        final Planned previous = this.changes.remove(alias);
+        final boolean removal = change.getType() == CertificateChange.Type.REMOVE || previous != null && previous.removesLegacy;
+        this.changes.put(alias, new Planned(change, removal));
+    }
+
+    /**
+     * The changes to apply, in order. A removal followed by an addition
+     * still removes the legacy alias (the bare file name) first.
+     */
+    List<CertificateChange> changes() {
+        final List<CertificateChange> changes = new ArrayList<>(this.changes.size());
+        for (final Planned planned : this.changes.values()) {
+            if (planned.removesLegacy && planned.change.getType() == CertificateChange.Type.ADD) {
+                changes.add(CertificateChange.removal(planned.change.getFilename()));
+            }
+            changes.add(planned.change);
+        }
+        return changes;
+    }
+
+    /**
+     * The last change of every alias which adds a certificate, in order.
+     */
+    List<CertificateChange> additions() {
+        final List<CertificateChange> additions = new ArrayList<>();
+        for (final Planned planned : this.changes.values()) {
+            if (planned.change.getType() == CertificateChange.Type.ADD) additions.add(planned.change);
+        }
+        return additions;
+    }
+
+    /**
+     * Number of changes which were superseded by a later change of the same alias.
+     */
+    int superseded() {
+        return this.received - this.changes.size();
+    }
+
+    private static final class Planned {
+
+        private final CertificateChange change;
+
+        /**
+         * Whether a removal was planned for the alias at some point
+         */
+        private final boolean removesLegacy;
+
+        private Planned(final CertificateChange change, final boolean removesLegacy) {
+            this.change = change;
+            this.removesLegacy = removesLegacy;
+        }
+    }
+}
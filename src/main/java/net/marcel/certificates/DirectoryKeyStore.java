@@ -0,0 +1,309 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * A read-only keystore of the certificate files (*.crt and *.pem) found in
+ * directories, under the same "debian:" aliases as written by
+ * {@link UpdateCertificates#reconcile}. Listing the aliases only scans the
+ * directories, by file name and type : a certificate is read and decoded
+ * when it is first asked for, and kept in a bounded cache of the most
+ * recently used ones. Bundles such as ca-certificates.crt are recognized
+ * then, and left out until they change. The directories are
+ * scanned again, and the cache dropped, when the modification time of one of
+ * them changes.
+ * <p>
+ * See {@link CertificateDirectoryProvider} for how the directories are
+ * given.
+ */
+class DirectoryKeyStore extends KeyStoreSpi {
+
+    static final String TYPE = "CADIR";
+
+    /**
+     * Directories used when the keystore is loaded without any
+     */
+    static final Path DEFAULT_DIRECTORY = Path.of("/etc/ssl/certs");
+
+    /**
+     * How many decoded certificates are kept
+     */
+    static final int CACHE_SIZE = 256;
+
+    private final CertificateLoader certLoader = new CertificateLoader(null, new Log(Log.Level.QUIET), new RunReport(TYPE));
+
+    private final Map<String, Certificate> decoded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Certificate> eldest) {
+            return this.size() > CACHE_SIZE;
+        }
+    };
+
+    private List<Path> directories = List.of();
+
+    /**
+     * Modification time of every directory when it was last scanned
+     */
+    private long[] scanned = new long[0];
+
+    /**
+     * Certificate files by normalized alias, first directory wins
+     */
+    private Map<String, Path> files = Map.of();
+
+    /**
+     * Files found to be bundles, with their modification time then
+     */
+    private Map<Path, Long> bundles = Map.of();
+
+    /**
+     * The directories are read one per line from stream, or are the default
+     * directory when stream is null. The password is not used.
+     */
+    @Override
+    public void engineLoad(final InputStream stream, final char[] password) throws IOException {
+        if (stream == null) {
+            this.load(List.of(DEFAULT_DIRECTORY));
+            return;
+        }
+
+        final List<Path> directories = new ArrayList<>();
+        for (final String line : new String(stream.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isBlank()) directories.add(Path.of(line.strip()));
+        }
+        this.load(directories);
+    }
+
+    @Override
+    public void engineLoad(final KeyStore.LoadStoreParameter param) throws IOException {
+        if (param == null) this.load(List.of(DEFAULT_DIRECTORY));
+        else if (param instanceof CertificateDirectoryProvider.Directories) {
+            this.load(((CertificateDirectoryProvider.Directories) param).getDirectories());
+        } else throw new IllegalArgumentException("Unsupported load parameter: " + param.getClass().getName());
+    }
+
+    private synchronized void load(final List<Path> directories) throws IOException {
+        this.directories = List.copyOf(directories);
+        this.scanned = new long[directories.size()];
+        this.scan();
+    }
+
+    private void scan() throws IOException {
+        final Map<String, Path> files = new TreeMap<>();
+        final Map<Path, Long> bundles = new HashMap<>();
+        for (int i = 0; i < this.directories.size(); i++) {
+            final Path directory = this.directories.get(i);
+            this.scanned[i] = lastModified(directory);
+            if (!Files.isDirectory(directory)) continue;
+            try (Stream<Path> entries = Files.list(directory)) {
+                entries.filter(file -> UpdateCertificates.hasCertificateExtension(file) && Files.isRegularFile(file)).sorted().forEach(file -> {
+                    final Long bundle = this.bundles.get(file);
+                    if (bundle != null && bundle == lastModified(file)) bundles.put(file, bundle);
+                    else files.putIfAbsent(normalize(CertificateChange.aliasOf(file.getFileName().toString())), file);
+                });
+            }
+        }
+        this.files = files;
+        this.bundles = bundles;
+        this.decoded.clear();
+    }
+
+    /**
+     * Read a certificate file, returns null when it turns out to be a
+     * bundle : the directories are then scanned again on the next access,
+     * leaving it out until it changes.
+     */
+    private byte[] read(final Path file) throws IOException {
+        final long modified = lastModified(file);
+        final byte[] content = Files.readAllBytes(file);
+        if (!Pem.isBundle(content)) return content;
+        final Map<Path, Long> bundles = new HashMap<>(this.bundles);
+        bundles.put(file, modified);
+        this.bundles = bundles;
+        Arrays.fill(this.scanned, -1);
+        return null;
+    }
+
+    /**
+     * Scan again when a directory changed since the last scan.
+     */
+    private void refresh() {
+        for (int i = 0; i < this.directories.size(); i++) {
+            if (lastModified(this.directories.get(i)) != this.scanned[i]) {
+                try {
+                    this.scan();
+                } catch (IOException e) {
+                    // Keep the previous content, the next access tries again
+                    this.scanned[i] = -1;
+                }
+                return;
+            }
+        }
+    }
+
+    private static long lastModified(final Path path) {
+        return path.toFile().lastModified();
+    }
+
+    @Override
+    public synchronized Certificate engineGetCertificate(final String alias) {
+        this.refresh();
+        final String key = normalize(alias);
+        final Certificate cached = this.decoded.get(key);
+        if (cached != null) return cached;
+
+        final Path file = this.files.get(key);
+        if (file == null) return null;
+        try {
+            final byte[] content = this.read(file);
+            if (content == null) return null;
+            final Certificate cert = this.certLoader.decode(content);
+            this.decoded.put(key, cert);
+            return cert;
+        } catch (IOException | CertificateException e) {
+            // An unreadable file is no trust anchor
+            return null;
+        }
+    }
+
+    @Override
+    public Key engineGetKey(final String alias, final char[] password) {
+        return null;
+    }
+
+    @Override
+    public Certificate[] engineGetCertificateChain(final String alias) {
+        return null;
+    }
+
+    @Override
+    public synchronized Date engineGetCreationDate(final String alias) {
+        this.refresh();
+        final Path file = this.files.get(normalize(alias));
+        return file == null ? null : new Date(file.toFile().lastModified());
+    }
+
+    @Override
+    public void engineSetKeyEntry(final String alias, final Key key, final char[] password, final Certificate[] chain) throws KeyStoreException {
+        throw new KeyStoreException(TYPE + " keystores are read-only");
+    }
+
+    @Override
+    public void engineSetKeyEntry(final String alias, final byte[] key, final Certificate[] chain) throws KeyStoreException {
+        throw new KeyStoreException(TYPE + " keystores are read-only");
+    }
+
+    @Override
+    public void engineSetCertificateEntry(final String alias, final Certificate cert) throws KeyStoreException {
+        throw new KeyStoreException(TYPE + " keystores are read-only");
+    }
+
+    @Override
+    public void engineDeleteEntry(final String alias) throws KeyStoreException {
+        throw new KeyStoreException(TYPE + " keystores are read-only");
+    }
+
+    @Override
+    public synchronized Enumeration<String> engineAliases() {
+        this.refresh();
+        return Collections.enumeration(new ArrayList<>(this.files.keySet()));
+    }
+
+    @Override
+    public synchronized boolean engineContainsAlias(final String alias) {
+        this.refresh();
+        return this.files.containsKey(normalize(alias));
+    }
+
+    @Override
+    public synchronized int engineSize() {
+        this.refresh();
+        return this.files.size();
+    }
+
+    @Override
+    public boolean engineIsKeyEntry(final String alias) {
+        return false;
+    }
+
+    @Override
+    public boolean engineIsCertificateEntry(final String alias) {
+        return this.engineContainsAlias(alias);
+    }
+
+    /**
+     * Compares fingerprints, the certificate files are digested but not
+     * decoded.
+     */
+    @Override
+    public synchronized String engineGetCertificateAlias(final Certificate cert) {
+        this.refresh();
+        final String fingerprint;
+        try {
+            fingerprint = Fingerprint.of(cert);
+        } catch (CertificateEncodingException e) {
+            // No alias for it then
+            return null;
+        }
+
+        for (final Map.Entry<String, Path> e : this.files.entrySet()) {
+            try {
+                final byte[] content = this.read(e.getValue());
+                final byte[] encoded = content == null ? null : Pem.firstCertificate(content);
+                if (encoded != null && fingerprint.equals(Fingerprint.of(encoded))) return e.getKey();
+            } catch (IOException | RuntimeException ignored) {
+                // Unreadable, no trust anchor
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void engineStore(final OutputStream stream, final char[] password) throws IOException {
+        throw new IOException(TYPE + " keystores are read-only, update the certificate directory instead");
+    }
+
+    private static String normalize(final String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads changes carrying the certificates themselves, so producers holding
+ * them in memory need not write files first. Each frame is, big endian :
+ * <ul>
+ * <li>the change, '+' to add or '-' to remove, one byte</li>
+ * <li>the UTF-8 alias length, two bytes, then the alias</li>
+ * <li>the payload length, four bytes, then the payload : the DER or PEM
+ * encoded certificate of an addition, nothing for a removal. Payloads are
+ * at most 1 MiB, longer ones are taken for a corrupt input.</li>
+ * </ul>
+ * Aliases are used as they are, an addition without alias gets one derived
+ * from its certificate (see {@link CertificateChange#bundleAliasOf}). The
+ * channel is read through one reusable buffer, only the payload of each
+ * frame is copied out.
+ */
+final class FramedInput {
+
+    static final byte ADD = '+';
+    static final byte REMOVE = '-';
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+    private final ReadableByteChannel channel;
+    private final Log log;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+    private long offset;
+    private boolean eof;
+
+    FramedInput(final ReadableByteChannel channel, final Log log) {
+        this.channel = channel;
+        this.log = log;
+    }
+
+    /**
+     * Returns the next change, or null at the end of the input. Frames of
+     * unknown changes are reported and skipped.
+     */
+    CertificateChange next() throws IOException {
+        while (this.fill(1)) {
+            final long start = this.offset;
+            final byte type = this.buffer.get();
+            this.require(2, start);
+            final int aliasLength = Short.toUnsignedInt(this.buffer.getShort());
+            this.require(aliasLength, start);
+            final String alias = aliasLength == 0 ? null : this.alias(aliasLength);
+            this.require(4, start);
+            final int length = this.buffer.getInt();
+            if (length < 0 || length > MAX_PAYLOAD_LENGTH) throw new IOException("Invalid payload length " + Integer.toUnsignedString(length) + " at byte " + start);
+            this.offset += 1 + 2 + aliasLength + 4;
+
+            if (type == ADD) {
+                if (length == 0) throw new IOException("Missing certificate at byte " + start);
+                return CertificateChange.inline("frame at byte " + start, alias, this.payload(length, start));
+            }
+            this.skip(length, start);
+            if (type == REMOVE && alias != null) return CertificateChange.removal(alias);
+            this.log.warn("Unknown input: frame '" + (char) (type & 0xff) + "' at byte " + start);
+        }
+        return null;
+    }
+
+    /**
+     * Bytes read so far.
+     */
+    long getOffset() {
+        return this.offset;
+    }
+
+    private String alias(final int length) {
+        final String alias = new String(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), length, StandardCharsets.UTF_8);
+        this.buffer.position(this.buffer.position() + length);
+        return alias;
+    }
+
+    private byte[] payload(final int length, final long start) throws IOException {
+        final byte[] payload = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            this.require(1, start);
+            final int chunk = Math.min(length - copied, this.buffer.remaining());
+            this.buffer.get(payload, copied, chunk);
+            copied += chunk;
+        }
+        this.offset += length;
+        return payload;
+    }
+
+    private void skip(final int length, final long start) throws IOException {
+        int skipped = 0;
+        while (skipped < length) {
+            this.require(1, start);
+            final int chunk = Math.min(length - skipped, this.buffer.remaining());
+            this.buffer.position(this.buffer.position() + chunk);
+            skipped += chunk;
+        }
+        this.offset += length;
+    }
+
+    private void require(final int count, final long start) throws IOException {
+        if (!this.fill(count)) throw new IOException("Truncated frame at byte " + start);
+    }
+
+    /**
+     * Make at least count bytes available, at most the buffer size. Returns
+     * false when the input ends before.
+     */
+    private boolean fill(final int count) throws IOException {
+        if (this.buffer.remaining() >= count) return true;
+        this.buffer.compact();
+        try {
+            while (this.buffer.position() < count && !this.eof) {
+                if (this.channel.read(this.buffer) < 0) this.eof = true;
+            }
+        } finally {
+            this.buffer.flip();
+        }
+        return this.buffer.remaining() >= count;
+    }
+}
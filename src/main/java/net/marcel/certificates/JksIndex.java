@@ -0,0 +1,181 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The entries of a JKS keystore file, read without decoding a single
+ * certificate. Every entry knows where it is in the file, so it can be
+ * written again byte for byte, and trusted certificate entries know their
+ * SHA-256 fingerprint.
+ */
+final class JksIndex {
+
+    static final int KEY_TAG = 1;
+
+    private static final int DIGEST_LENGTH = 20;
+
+    private final byte[] content;
+    private final int digestOffset;
+    private final Map<String, Entry> entries;
+
+    private JksIndex(final byte[] content, final int digestOffset, final Map<String, Entry> entries) {
+        this.content = content;
+        this.digestOffset = digestOffset;
+        this.entries = entries;
+    }
+
+    /**
+     * Index a keystore file content, returns null when it is not a JKS
+     * keystore of the current version.
+     */
+    static JksIndex read(final byte[] content) throws IOException {
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+        final DataInputStream in = new DataInputStream(bytes);
+        if (content.length < 12 || in.readInt() != JksWriter.MAGIC || in.readInt() != JksWriter.VERSION) return null;
+
+        final MessageDigest digest = Fingerprint.digest();
+        final int count = in.readInt();
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            final int offset = content.length - bytes.available();
+            final int tag = in.readInt();
+            final String alias = in.readUTF();
+            final long date = in.readLong();
+            String fingerprint = null;
+            int encodedOffset = 0;
+            int encodedLength = 0;
+            if (tag == KEY_TAG) {
+                in.skipNBytes(in.readInt());
+                final int chain = in.readInt();
+                for (int j = 0; j < chain; j++) {
+                    in.readUTF();
+                    in.skipNBytes(in.readInt());
+                }
+            } else if (tag == JksWriter.TRUSTED_CERT_TAG) {
+                in.readUTF();
+                encodedLength = in.readInt();
+                encodedOffset = content.length - bytes.available();
+                in.skipNBytes(encodedLength);
+                digest.update(content, encodedOffset, encodedLength);
+                fingerprint = Fingerprint.hex(digest.digest());
+            } else {
+                throw new IOException("Unrecognized keystore entry: " + tag);
+            }
+            final int length = content.length - bytes.available() - offset;
+            entries.put(alias.toLowerCase(Locale.ENGLISH), new Entry(content, alias, tag, date, offset, length, encodedOffset, encodedLength, fingerprint));
+        }
+
+        if (bytes.available() != DIGEST_LENGTH) throw new IOException("Invalid keystore format");
+        return new JksIndex(content, content.length - DIGEST_LENGTH, entries);
+    }
+
+    /**
+     * Returns true when the integrity check of the file matches password.
+     */
+    boolean verify(final char[] password) {
+        final MessageDigest digest = JksWriter.preKeyedDigest(password);
+        digest.update(this.content, 0, this.digestOffset);
+        return MessageDigest.isEqual(digest.digest(), Arrays.copyOfRange(this.content, this.digestOffset, this.content.length));
+    }
+
+    /**
+     * Returns true when the keystore holds private key entries.
+     */
+    boolean hasKeyEntries() {
+        return this.entries.values().stream().anyMatch(e -> e.tag == KEY_TAG);
+    }
+
+    /**
+     * The entries in file order, by normalized alias.
+     */
+    Map<String, Entry> entries() {
+        return Collections.unmodifiableMap(this.entries);
+    }
+
+    /**
+     * An entry of the keystore file.
+     */
+    static final class Entry {
+
+        private final byte[] content;
+        private final String alias;
+        private final int tag;
+        private final long date;
+        private final int offset;
+        private final int length;
+        private final int encodedOffset;
+        private final int encodedLength;
+        private final String fingerprint;
+
+        private Entry(final byte[] content, final String alias, final int tag, final long date, final int offset, final int length,
+                      final int encodedOffset, final int encodedLength, final String fingerprint) {
+            this.content = content;
+            this.alias = alias;
+            this.tag = tag;
+            this.date = date;
+            this.offset = offset;
+            this.length = length;
+            this.encodedOffset = encodedOffset;
+            this.encodedLength = encodedLength;
+            this.fingerprint = fingerprint;
+        }
+
+        String getAlias() {
+            return this.alias;
+        }
+
+        boolean isTrustedCertificate() {
+            return this.tag == JksWriter.TRUSTED_CERT_TAG;
+        }
+
+        long getDate() {
+            return this.date;
+        }
+
+        /**
+         * SHA-256 fingerprint of a trusted certificate, null for key entries.
+         */
+        String getFingerprint() {
+            return this.fingerprint;
+        }
+
+        /**
+         * The DER encoding of a trusted certificate.
+         */
+        byte[] getEncoded() {
+            return Arrays.copyOfRange(this.content, this.encodedOffset, this.encodedOffset + this.encodedLength);
+        }
+
+        /**
+         * The entry exactly as stored in the file.
+         */
+        ByteBuffer raw() {
+            return ByteBuffer.wrap(this.content, this.offset, this.length).slice();
+        }
+    }
+}
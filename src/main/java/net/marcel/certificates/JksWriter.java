@@ -0,0 +1,160 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Writes a JKS keystore of trusted certificates one entry at a time, straight
+ * from their DER encoding, without building a {@link java.security.KeyStore}.
+ * Memory use does not depend on the number of entries.
+ * <p>
+ * The entry count is part of the header and of the integrity hash, so it is
+ * patched in once all entries are written and the hash is then computed by
+ * reading the temporary file back. The keystore is replaced atomically on
+ * {@link #commit()}, like {@link AtomicFiles#write(Path, ByteBuffer)} does.
+ */
+class JksWriter implements Closeable {
+
+    static final int MAGIC = 0xfeedfeed;
+    static final int VERSION = 2;
+    static final int TRUSTED_CERT_TAG = 2;
+
+    private static final int COUNT_OFFSET = 8;
+
+    private final char[] password;
+    private final Path file;
+    private final Path temp;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final Set<String> aliases = new HashSet<>();
+    private long bytes;
+
+    JksWriter(final Path target, final char[] password) throws IOException {
+        this.password = password;
+        this.file = AtomicFiles.resolve(target);
+        this.temp = AtomicFiles.createTemp(this.file);
+        this.channel = FileChannel.open(this.temp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.channel), 1 << 16));
+
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeInt(0); // Entry count, see commit()
+    }
+
+    /**
+     * Append a trusted certificate entry. Aliases are case insensitive and
+     * must be unique.
+     */
+    void add(final String alias, final byte[] encoded, final long date) throws IOException {
+        final String normalized = alias.toLowerCase(Locale.ENGLISH);
+        if (!this.aliases.add(normalized)) throw new IllegalArgumentException("Duplicate alias " + alias);
+
+        writeTrustedCertificate(this.out, normalized, encoded, date);
+    }
+
+    /**
+     * Write a trusted certificate entry in the JKS format.
+     */
+    static void writeTrustedCertificate(final DataOutputStream out, final String alias, final byte[] encoded, final long date) throws IOException {
+        out.writeInt(TRUSTED_CERT_TAG);
+        out.writeUTF(alias);
+        out.writeLong(date);
+        out.writeUTF("X.509");
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    int size() {
+        return this.aliases.size();
+    }
+
+    /**
+     * Size of the written keystore, known after {@link #commit()}.
+     */
+    long bytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Finish the keystore and move it in place.
+     */
+    void commit() throws IOException {
+        this.out.flush();
+        this.channel.write(ByteBuffer.allocate(4).putInt(0, this.aliases.size()), COUNT_OFFSET);
+
+        final MessageDigest digest = preKeyedDigest(this.password);
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long position = 0;
+        int read;
+        while ((read = this.channel.read(buffer.clear(), position)) > 0) {
+            digest.update(buffer.flip());
+            position += read;
+        }
+
+        final ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+        while (hash.hasRemaining()) position += this.channel.write(hash, position);
+        this.channel.force(true);
+        this.channel.close();
+        this.bytes = position;
+
+        AtomicFiles.replace(this.temp, this.file);
+    }
+
+    /**
+     * Discard the keystore unless it was committed.
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+        Files.deleteIfExists(this.temp);
+    }
+
+    /**
+     * The SHA-1 digest JKS uses for integrity checking, already fed with the
+     * password.
+     */
+    static MessageDigest preKeyedDigest(final char[] password) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+        for (final char c : password) {
+            digest.update((byte) (c >> 8));
+            digest.update((byte) c);
+        }
+        digest.update("Mighty Aphrodite".getBytes(StandardCharsets.UTF_8));
+        return digest;
+    }
+}
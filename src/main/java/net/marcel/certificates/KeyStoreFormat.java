@@ -0,0 +1,107 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The keystore file formats which can be read and written.
+ */
+public enum KeyStoreFormat {
+
+    /**
+     * The format of the existing file, JKS for a new one.
+     */
+    AUTO,
+    JKS,
+    PKCS12;
+
+    private static final String MAC_ALGORITHM = "keystore.pkcs12.macAlgorithm";
+    private static final String MAC_ITERATIONS = "keystore.pkcs12.macIterationCount";
+    private static final String CERT_ALGORITHM = "keystore.pkcs12.certProtectionAlgorithm";
+    private static final String CERT_ITERATIONS = "keystore.pkcs12.certPbeIterationCount";
+
+    /**
+     * The format of a keystore file content, null when it is not recognized.
+     */
+    static KeyStoreFormat detect(final byte[] content) {
+        if (content.length >= 4 && (content[0] & 0xff) == 0xfe && (content[1] & 0xff) == 0xed
+                && (content[2] & 0xff) == 0xfe && (content[3] & 0xff) == 0xed) return JKS;
+        // A PKCS12 file is a DER sequence
+        if (content.length > 0 && content[0] == 0x30) return PKCS12;
+        return null;
+    }
+
+    /**
+     * The format of the given name, case insensitive.
+     */
+    static KeyStoreFormat parse(final String name) {
+        return valueOf(name.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * A new, not yet loaded, keystore of this format.
+     */
+    KeyStore newKeyStore() throws KeyStoreException {
+        if (this == AUTO) throw new IllegalStateException("No keystore type for " + this);
+        return KeyStore.getInstance(this.name());
+    }
+
+    /**
+     * Write a PKCS12 keystore with the given iteration counts : 0 disables
+     * the integrity MAC or the certificate encryption, a negative count keeps
+     * the JDK default. Consumers of a keystore of trusted certificates load
+     * it faster with low counts, nothing in it is secret.
+     * <p>
+     * The JDK only reads these settings from system properties, when storing
+     * a keystore which was not loaded from a file : trusted certificate
+     * entries take no protection parameter, and there is no per call way to
+     * set the MAC. The properties are set for the duration of the call, JVM
+     * wide : calls of this method are serialized, but any other PKCS12
+     * keystore stored by the process meanwhile gets the same settings.
+     */
+    static void storePkcs12(final KeyStore keyStore, final OutputStream out, final char[] password,
+                            final int macIterations, final int certIterations) throws IOException, GeneralSecurityException {
+        synchronized (KeyStoreFormat.class) {
+            final Map<String, String> previous = new HashMap<>();
+            try {
+                if (macIterations == 0) override(previous, MAC_ALGORITHM, "NONE");
+                else if (macIterations > 0) override(previous, MAC_ITERATIONS, Integer.toString(macIterations));
+                if (certIterations == 0) override(previous, CERT_ALGORITHM, "NONE");
+                else if (certIterations > 0) override(previous, CERT_ITERATIONS, Integer.toString(certIterations));
+                keyStore.store(out, password);
+            } finally {
+                previous.forEach((name, value) -> {
+                    if (value == null) System.clearProperty(name);
+                    else System.setProperty(name, value);
+                });
+            }
+        }
+    }
+
+    private static void override(final Map<String, String> previous, final String name, final String value) {
+        previous.put(name, System.getProperty(name));
+        System.setProperty(name, value);
+    }
+}
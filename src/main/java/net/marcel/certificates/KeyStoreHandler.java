@@ -19,17 +19,26 @@
 
 package net.marcel.certificates;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Handles read/write operations on a keystore.
@@ -46,14 +55,95 @@ class KeyStoreHandler {
      */
     private final char[] password;
     private final boolean clear;
-    private final CertificateFactory certFactory;
+
+    /**
+     * Whether certificates are decoded only when needed, see {@link LazyKeyStore}
+     */
+    private final boolean lazy;
+    private final CertificateLoader certLoader;
+    private final Log log;
+    private final RunReport report;
     private KeyStore keyStore;
 
+    /**
+     * The format to save in, see {@link #setFormat(KeyStoreFormat)}
+     */
+    private KeyStoreFormat format = KeyStoreFormat.AUTO;
+
+    /**
+     * The format of the keystore in memory, the one of the file it was loaded from
+     */
+    private KeyStoreFormat loadedFormat;
+
+    /**
+     * PKCS12 iteration counts, see {@link KeyStoreFormat#storePkcs12}
+     */
+    private int pkcs12MacIterations = -1;
+    private int pkcs12CertIterations = -1;
+
+    /**
+     * Whether the PKCS12 keystore in memory keeps the MAC and encryption
+     * settings of the file it was loaded from when stored
+     */
+    private boolean fileProtection;
+
+    /**
+     * SHA-256 fingerprint of every entry, by normalized alias
+     */
+    private final Map<String, String> fingerprints = new HashMap<>();
+
+    /**
+     * Normalized aliases of every entry, by SHA-256 fingerprint
+     */
+    private final Map<String, Set<String>> aliasesByFingerprint = new HashMap<>();
+
+    /**
+     * Whether a certificate already stored under another alias is skipped
+     */
+    private boolean collapseDuplicates;
+
+    /**
+     * Fingerprints of the aliases skipped as duplicates, by normalized alias
+     */
+    private final Map<String, String> collapsed = new TreeMap<>();
+
+    /**
+     * Checks new certificates before they are added, null for none
+     */
+    private CertificateValidator validator;
+
+    /**
+     * Where a {@link TrustSnapshot} is written on save, null for none
+     */
+    private Path snapshot;
+
+    /**
+     * Whether the keystore content differs from the file it was loaded from
+     */
+    private boolean dirty;
+    private long loadedLength;
+    private long loadedLastModified;
+
     KeyStoreHandler(final String filename, final char[] password, final boolean clear) throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        this(filename, password, clear, new CertificateLoader());
+    }
+
+    KeyStoreHandler(final String filename, final char[] password, final boolean clear, final CertificateLoader certLoader) throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        this(filename, password, clear, certLoader, Log.console(), new RunReport(filename));
+    }
+
+    KeyStoreHandler(final String filename, final char[] password, final boolean clear, final CertificateLoader certLoader, final Log log, final RunReport report) throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        this(filename, password, clear, false, certLoader, log, report);
+    }
+
+    KeyStoreHandler(final String filename, final char[] password, final boolean clear, final boolean lazy, final CertificateLoader certLoader, final Log log, final RunReport report) throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
         this.filename = filename;
         this.password = password;
         this.clear = clear;
-        this.certFactory = CertificateFactory.getInstance("X.509");
+        this.lazy = lazy;
+        this.certLoader = certLoader;
+        this.log = log;
+        this.report = report;
 
         this.load();
     }
@@ -62,38 +152,306 @@ class KeyStoreHandler {
      * Try to open an existing keystore or create an new one.
      */
     public void load() throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
-        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        final RunReport.Timer timer = this.report.start(RunReport.Phase.LOAD);
+        try {
+            this.read();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void read() throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        KeyStore keyStore = KeyStoreFormat.JKS.newKeyStore();
+        this.loadedFormat = KeyStoreFormat.JKS;
+        this.fileProtection = false;
 
         final File file = new File(this.filename);
+        this.fingerprints.clear();
+        this.aliasesByFingerprint.clear();
+        this.collapsed.clear();
+        this.loadedLength = file.length();
+        this.loadedLastModified = file.lastModified();
         if (this.clear || !file.exists() || !file.canRead()) {
             keyStore.load(null, this.password);
+            this.dirty = true;
         } else {
-            try (InputStream inputStream = new FileInputStream(this.filename)) {
-                keyStore.load(inputStream, this.password);
+            JksIndex index = null;
+            try {
+                final byte[] content = Files.readAllBytes(file.toPath());
+                if (this.lazy) index = JksIndex.read(content);
+                // Private keys need the JDK implementation
+                if (index != null && index.hasKeyEntries()) index = null;
+
+                if (index != null) keyStore = LazyKeyStore.create(index, this.password, this.certLoader);
+                else {
+                    final KeyStoreFormat detected = KeyStoreFormat.detect(content);
+                    if (detected != null) {
+                        keyStore = detected.newKeyStore();
+                        this.loadedFormat = detected;
+                        this.fileProtection = detected == KeyStoreFormat.PKCS12;
+                    }
+                    keyStore.load(new ByteArrayInputStream(content), this.password);
+                }
             } catch (IOException e) {
                 throw new InvalidKeystorePasswordException("Cannot open Java keystore. Is the password correct?", e);
             }
+            this.dirty = this.isConverted() || this.isReprotected();
+            this.report.bytesRead(this.loadedLength);
+
+            if (index != null) {
+                // Fingerprints straight from the file, without decoding anything
+                for (final JksIndex.Entry entry : index.entries().values()) {
+                    if (entry.isTrustedCertificate()) this.index(entry.getAlias(), entry.getFingerprint());
+                }
+            } else {
+                for (final String alias : Collections.list(keyStore.aliases())) {
+                    final Certificate cert = keyStore.getCertificate(alias);
+                    if (cert != null) this.index(alias, Fingerprint.of(cert));
+                }
+            }
         }
 
         this.keyStore = keyStore;
+        if (this.collapseDuplicates) this.collapseExisting();
     }
 
     /**
-     * Write actual keystore content to disk.
+     * Set the format the keystore is saved in. By default it stays in the
+     * format of the file it was loaded from, a new keystore is a JKS one.
+     */
+    public void setFormat(final KeyStoreFormat format) {
+        this.format = format;
+        if (this.isConverted()) this.dirty = true;
+    }
+
+    /**
+     * Set the iteration counts of the integrity MAC and of the certificate
+     * encryption of a PKCS12 keystore, 0 disables them and a negative count
+     * keeps the JDK default. See {@link KeyStoreFormat#storePkcs12}.
+     */
+    public void setPkcs12Iterations(final int macIterations, final int certIterations) {
+        this.pkcs12MacIterations = macIterations;
+        this.pkcs12CertIterations = certIterations;
+        if (this.isReprotected()) this.dirty = true;
+    }
+
+    private KeyStoreFormat outputFormat() {
+        return this.format == KeyStoreFormat.AUTO ? this.loadedFormat : this.format;
+    }
+
+    /**
+     * Returns true when saving changes the format of the file.
+     */
+    private boolean isConverted() {
+        return this.outputFormat() != this.loadedFormat;
+    }
+
+    /**
+     * Returns true when saving changes the PKCS12 settings of the file.
+     */
+    private boolean isReprotected() {
+        return this.outputFormat() == KeyStoreFormat.PKCS12 && this.fileProtection
+                && (this.pkcs12MacIterations >= 0 || this.pkcs12CertIterations >= 0);
+    }
+
+    /**
+     * When enabled, a certificate which is already a trusted entry under
+     * another alias is not added again and duplicates already in the
+     * keystore are removed, keeping the first alias. The skipped aliases are
+     * remembered until the next load : when the kept entry is removed one of
+     * them takes over, so removing one of several identical certificates
+     * does not drop the trust anchor.
+     */
+    public void setCollapseDuplicates(final boolean collapseDuplicates) throws KeyStoreException {
+        this.collapseDuplicates = collapseDuplicates;
+        if (collapseDuplicates) this.collapseExisting();
+    }
+
+    private void collapseExisting() throws KeyStoreException {
+        for (final Set<String> aliases : new ArrayList<>(this.aliasesByFingerprint.values())) {
+            String kept = null;
+            for (final String alias : new ArrayList<>(aliases)) {
+                if (!this.keyStore.isCertificateEntry(alias)) continue;
+                if (kept == null) kept = alias;
+                else {
+                    this.log.info("Removing " + alias + ", same certificate as " + kept);
+                    this.report.removed();
+                    this.collapsed.put(alias, this.fingerprints.get(alias));
+                    this.keyStore.deleteEntry(alias);
+                    this.unindex(alias);
+                    this.dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Validate certificates before adding them, according to the policy of
+     * the validator. Null disables validation.
+     */
+    public void setValidator(final CertificateValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * With the {@link ValidationPolicy#REMOVE} policy, remove the trusted
+     * entries failing validation. Collapsed duplicates of a removed entry are
+     * forgotten so they do not take over. Every trusted certificate is
+     * decoded, the checks run in parallel.
+     */
+    public void pruneInvalid() throws KeyStoreException {
+        if (this.validator == null || this.validator.getPolicy() != ValidationPolicy.REMOVE) return;
+
+        final Map<String, Certificate> trusted = new HashMap<>();
+        for (final String alias : Collections.list(this.keyStore.aliases())) {
+            if (this.keyStore.isCertificateEntry(alias)) trusted.put(alias, this.keyStore.getCertificate(alias));
+        }
+        for (final Map.Entry<String, String> e : this.validator.problems(trusted).entrySet()) {
+            final String fingerprint = this.fingerprints.get(normalize(e.getKey()));
+            this.log.info("Removing " + e.getKey() + ", " + e.getValue());
+            this.report.removed();
+            this.report.pruned(e.getKey(), fingerprint, e.getValue(), "removed");
+            this.collapsed.values().removeIf(f -> f.equals(fingerprint));
+            this.remove(e.getKey());
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Returns the aliases sharing a certificate with at least one other
+     * alias, by fingerprint.
+     */
+    public Map<String, Set<String>> duplicates() {
+        final Map<String, Set<String>> duplicates = new TreeMap<>();
+        this.aliasesByFingerprint.forEach((fingerprint, aliases) -> {
+            if (aliases.size() > 1) duplicates.put(fingerprint, Collections.unmodifiableSet(new TreeSet<>(aliases)));
+        });
+        return duplicates;
+    }
+
+    /**
+     * Also write the trusted certificates as a {@link TrustSnapshot} to the
+     * given file on save, null for none.
+     */
+    public void setSnapshot(final Path snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Write actual keystore content to disk. The file is replaced atomically,
+     * a JVM starting meanwhile either sees the previous or the new keystore.
+     * Nothing is written when no entry changed, unless the file is missing.
+     * A file replaced by another process since it was loaded is never
+     * overwritten : it is loaded again when there is nothing to write, and
+     * saving fails otherwise. The snapshot, if any, is written with the
+     * keystore or when it is missing.
      */
     public void save() throws GeneralSecurityException, UnableToSaveKeystoreException {
-        if (this.clear) new File(this.filename).delete();
-        try (OutputStream outputStream = new FileOutputStream(this.filename)) {
-            this.keyStore.store(outputStream, this.password);
+        final boolean missing = !new File(this.filename).isFile();
+        if (!missing && !this.clear && this.isReplacedOnDisk()) {
+            if (this.dirty) throw new UnableToSaveKeystoreException(this.filename + " was replaced by another process since it was loaded.", null);
+            try {
+                this.load();
+            } catch (IOException | InvalidKeystorePasswordException e) {
+                throw new UnableToSaveKeystoreException("There was a problem loading " + this.filename + " again, it was replaced by another process.", e);
+            }
+        }
+
+        final boolean write = this.dirty || missing;
+        if (write) this.store();
+        if (this.snapshot != null && (write || !Files.isRegularFile(this.snapshot))) this.storeSnapshot();
+    }
+
+    private void store() throws GeneralSecurityException, UnableToSaveKeystoreException {
+        try {
+            final KeyStoreFormat output = this.outputFormat();
+            if (this.isConverted() || this.isReprotected()) {
+                this.keyStore = this.copy(output);
+                this.loadedFormat = output;
+                this.fileProtection = false;
+            }
+
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            if (output == KeyStoreFormat.PKCS12) {
+                KeyStoreFormat.storePkcs12(this.keyStore, outputStream, this.password, this.pkcs12MacIterations, this.pkcs12CertIterations);
+            } else this.keyStore.store(outputStream, this.password);
+            AtomicFiles.write(Path.of(this.filename), outputStream.toByteArray());
+            this.report.bytesWritten(outputStream.size());
+            final File file = new File(this.filename);
+            this.loadedLength = file.length();
+            this.loadedLastModified = file.lastModified();
         } catch (IOException e) {
             throw new UnableToSaveKeystoreException("There was a problem saving the new Java keystore.", e);
         }
+        this.dirty = false;
+    }
+
+    private void storeSnapshot() throws GeneralSecurityException, UnableToSaveKeystoreException {
+        final Map<String, byte[]> certificates = new HashMap<>();
+        for (final String alias : Collections.list(this.keyStore.aliases())) {
+            if (this.keyStore.isCertificateEntry(alias)) certificates.put(alias, this.keyStore.getCertificate(alias).getEncoded());
+        }
+        try {
+            final ByteBuffer content = TrustSnapshot.encode(certificates);
+            this.report.bytesWritten(content.remaining());
+            AtomicFiles.write(this.snapshot, content);
+        } catch (IOException e) {
+            throw new UnableToSaveKeystoreException("There was a problem saving the trust snapshot.", e);
+        }
+    }
+
+    /**
+     * Copy every entry in a new keystore of the given format. Private keys
+     * must be protected by the keystore password.
+     */
+    private KeyStore copy(final KeyStoreFormat format) throws GeneralSecurityException, IOException {
+        final KeyStore copy = format.newKeyStore();
+        copy.load(null, this.password);
+        final KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(this.password);
+        for (final String alias : Collections.list(this.keyStore.aliases())) {
+            if (this.keyStore.isCertificateEntry(alias)) copy.setCertificateEntry(alias, this.keyStore.getCertificate(alias));
+            else copy.setEntry(alias, this.keyStore.getEntry(alias, protection), protection);
+        }
+        return copy;
+    }
+
+    /**
+     * Load the keystore again when another process replaced the file since
+     * it was loaded or saved. Changes not saved yet were made to the replaced
+     * content and are dropped, they would undo the other update. A cleared
+     * keystore is only ever written by this handler.
+     */
+    public void reloadIfChanged() throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        if (this.clear || !this.isReplacedOnDisk()) return;
+        if (this.dirty) this.log.warn("Warning: " + this.filename + " was replaced by another process, dropping the changes not saved yet.");
+        else this.log.debug("Reloading " + this.filename);
+        this.load();
+    }
+
+    /**
+     * Returns true when the content was changed since it was loaded or saved.
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Returns true when the file exists and is not the one loaded or saved.
+     */
+    private boolean isReplacedOnDisk() {
+        final File file = new File(this.filename);
+        return file.exists() && (file.length() != this.loadedLength || file.lastModified() != this.loadedLastModified);
     }
 
     /**
      * Add or replace existing cert in keystore with given alias.
      */
-    public void addAlias(final String alias, final String path) throws KeyStoreException {
+    public void addAlias(final String alias, final String path) throws GeneralSecurityException {
+        if (this.isCurrentFile(alias, path)) {
+            this.unchanged(alias);
+            return;
+        }
+
         final Certificate cert = this.loadCertificate(path);
         if (cert != null) {
             this.addAlias(alias, cert);
@@ -101,24 +459,154 @@ class KeyStoreHandler {
     }
 
     /**
-     * Add or replace existing cert in keystore with given alias.
+     * Add or replace existing cert in keystore with given alias. Replacing an
+     * entry with the very same certificate is a no-op.
      */
-    public void addAlias(final String alias, final Certificate cert) throws KeyStoreException {
-        if (this.contains(alias)) {
-            System.out.println("Replacing " + alias);
-            this.keyStore.deleteEntry(alias);
-        } else System.out.println("Adding " + alias);
+    public void addAlias(final String alias, final Certificate cert) throws GeneralSecurityException {
+        final String fingerprint = Fingerprint.of(cert);
+        final boolean exists = this.contains(alias);
+        if (exists && this.isCurrent(alias, fingerprint)) {
+            this.unchanged(alias);
+            return;
+        }
+
+        final String problem = this.validator != null ? this.validator.problem(cert, fingerprint) : null;
+        if (problem != null && this.validator.getPolicy() != ValidationPolicy.WARN) {
+            this.log.info("Skipping " + alias + ", " + problem);
+            this.report.pruned(alias, fingerprint, problem, "skipped");
+            this.report.skipped();
+            return;
+        } else if (problem != null) {
+            this.log.warn("Warning: " + alias + ", " + problem);
+            this.report.pruned(alias, fingerprint, problem, "warned");
+        }
+
+        final String duplicate = this.duplicateOf(alias, fingerprint);
+        if (duplicate != null && this.collapseDuplicates) {
+            if (exists) this.deleteAlias(alias);
+            if (!fingerprint.equals(this.collapsed.put(normalize(alias), fingerprint))) {
+                this.log.info("Skipping " + alias + ", same certificate as " + duplicate);
+            }
+            this.report.skipped();
+            return;
+        } else if (duplicate != null) {
+            this.log.warn("Warning: " + alias + " is the same certificate as " + duplicate);
+        }
+
+        if (exists) {
+            this.log.info("Replacing " + alias);
+            this.report.replaced();
+            this.remove(alias);
+        } else {
+            this.log.info("Adding " + alias);
+            this.report.added();
+        }
+        this.collapsed.remove(normalize(alias));
         this.keyStore.setCertificateEntry(alias, cert);
+        this.index(alias, fingerprint);
+        this.dirty = true;
     }
 
     /**
      * Delete cert in keystore at given alias.
      */
     public void deleteAlias(final String alias) throws GeneralSecurityException {
+        this.collapsed.remove(normalize(alias));
         if (this.contains(alias)) {
-            System.out.println("Removing " + alias);
-            this.keyStore.deleteEntry(alias);
+            this.log.info("Removing " + alias);
+            this.report.removed();
+            this.remove(alias);
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Delete an entry. When it was kept in place of collapsed duplicates, the
+     * first of them takes over.
+     */
+    private void remove(final String alias) throws KeyStoreException {
+        final String fingerprint = this.fingerprints.get(normalize(alias));
+        // Only needed for a collapsed duplicate taking over
+        final Certificate cert = fingerprint != null && this.collapsed.containsValue(fingerprint) ? this.keyStore.getCertificate(alias) : null;
+        this.keyStore.deleteEntry(alias);
+        this.unindex(alias);
+
+        if (cert == null || this.duplicateOf(alias, fingerprint) != null) return;
+        for (final Map.Entry<String, String> e : this.collapsed.entrySet()) {
+            if (e.getValue().equals(fingerprint) && !e.getKey().equals(normalize(alias))) {
+                this.log.info("Adding " + e.getKey() + ", same certificate as " + alias);
+                this.report.added();
+                this.keyStore.setCertificateEntry(e.getKey(), cert);
+                this.index(e.getKey(), fingerprint);
+                this.collapsed.remove(e.getKey());
+                return;
+            }
+        }
+    }
+
+    private void unchanged(final String alias) {
+        this.log.debug("Unchanged " + alias);
+        this.report.skipped();
+    }
+
+    /**
+     * Returns another alias holding the certificate with given fingerprint
+     * as trusted entry, or null.
+     */
+    private String duplicateOf(final String alias, final String fingerprint) throws KeyStoreException {
+        final Set<String> aliases = this.aliasesByFingerprint.get(fingerprint);
+        if (aliases == null) return null;
+        for (final String other : aliases) {
+            if (!other.equals(normalize(alias)) && this.keyStore.isCertificateEntry(other)) return other;
         }
+        return null;
+    }
+
+    private void index(final String alias, final String fingerprint) {
+        final String previous = this.fingerprints.put(normalize(alias), fingerprint);
+        if (previous != null) this.unindex(previous, alias);
+        this.aliasesByFingerprint.computeIfAbsent(fingerprint, f -> new TreeSet<>()).add(normalize(alias));
+    }
+
+    private void unindex(final String alias) {
+        final String fingerprint = this.fingerprints.remove(normalize(alias));
+        if (fingerprint != null) this.unindex(fingerprint, alias);
+    }
+
+    private void unindex(final String fingerprint, final String alias) {
+        final Set<String> aliases = this.aliasesByFingerprint.get(fingerprint);
+        if (aliases == null) return;
+        aliases.remove(normalize(alias));
+        if (aliases.isEmpty()) this.aliasesByFingerprint.remove(fingerprint);
+    }
+
+    /**
+     * The path of the keystore.
+     */
+    public String getFilename() {
+        return this.filename;
+    }
+
+    /**
+     * Returns all aliases of the keystore.
+     */
+    public List<String> aliases() throws KeyStoreException {
+        return Collections.list(this.keyStore.aliases());
+    }
+
+    /**
+     * Returns the SHA-256 fingerprint of the certificate at given alias, or
+     * null when there is no such alias.
+     */
+    public String getFingerprint(final String alias) {
+        return this.fingerprints.get(normalize(alias));
+    }
+
+    /**
+     * Returns the certificate of a trusted certificate entry, or null.
+     */
+    public Certificate getTrustedCertificate(final String alias) throws KeyStoreException {
+        return this.keyStore.isCertificateEntry(alias) ? this.keyStore.getCertificate(alias) : null;
     }
 
     /**
@@ -128,16 +616,47 @@ class KeyStoreHandler {
         return this.keyStore.containsAlias(alias);
     }
 
+    /**
+     * Returns true when the certificate file at path is known, without
+     * decoding it, to hold the certificate trusted under alias.
+     */
+    boolean isCurrentFile(final String alias, final String path) throws KeyStoreException {
+        final String cached = this.certLoader.cachedFingerprint(path);
+        return cached != null && this.isCurrent(alias, cached);
+    }
+
+    /**
+     * Returns true when alias is a certificate entry with the given fingerprint.
+     */
+    private boolean isCurrent(final String alias, final String fingerprint) throws KeyStoreException {
+        return fingerprint.equals(this.fingerprints.get(normalize(alias))) && this.keyStore.isCertificateEntry(alias);
+    }
+
+    /**
+     * Keystore aliases are case insensitive.
+     */
+    private static String normalize(final String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+
     /**
      * Try to load a certificate instance from given path.
      */
     private Certificate loadCertificate(final String path) {
-        try (InputStream inputStream = new FileInputStream(path)) {
-            return this.certFactory.generateCertificate(inputStream);
+        try {
+            return this.certLoader.load(path);
         } catch (Exception e) {
-            System.err.println("Warning: there was a problem reading the certificate file "
-                    + path + ". Message:\n  " + e.getMessage());
+            this.unreadable(path, e);
             return null;
         }
     }
+
+    /**
+     * Report a certificate file that could not be decoded.
+     */
+    void unreadable(final String path, final Throwable e) {
+        this.log.warn("Warning: there was a problem reading the certificate file "
+                + path + ". Message:\n  " + e.getMessage());
+        this.report.failed();
+    }
 }
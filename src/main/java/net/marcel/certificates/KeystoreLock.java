@@ -0,0 +1,219 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Exclusive access to a keystore, across processes. The lock is an advisory
+ * {@link FileLock} on "&lt;keystore&gt;.lock", next to the file the keystore
+ * path resolves to, so JDKs linking to a shared keystore share its lock.
+ * <p>
+ * A process which finds the keystore locked does not have to queue for its
+ * own load and save cycle : it writes its changes to the spool directory
+ * "&lt;keystore&gt;.spool" then waits for the lock. The holder applies the
+ * spooled changes along with its own, saves once and removes the spool
+ * files. When the waiter gets the lock and its spool file is gone, there is
+ * nothing left to do. When it is still there, the holder did not see it in
+ * time and the waiter applies it itself.
+ * <p>
+ * A spool file starts with the settings of the waiter (see
+ * {@link UpdateCertificates.Options#settings()}), the holder only takes over
+ * the changes of waiters with the same settings as its own.
+ * <p>
+ * The lock file stays next to the keystore : removing it would let a
+ * process lock a new file while another still holds the old one. The spool
+ * directory is removed whenever the lock is released with nothing left in
+ * it.
+ */
+final class KeystoreLock implements Closeable {
+
+    private static final String SPOOL_SUFFIX = ".changes";
+    private static final String SETTINGS_PREFIX = "# settings: ";
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * File locks are held by the whole JVM, threads are kept apart by these
+     */
+    private static final Map<Path, Semaphore> LOCAL = new ConcurrentHashMap<>();
+
+    private final Path keystore;
+    private final Semaphore local;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private KeystoreLock(final Path keystore, final Semaphore local, final FileChannel channel, final FileLock lock) {
+        this.keystore = keystore;
+        this.local = local;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Lock the keystore, waiting for the current holder if any.
+     */
+    static KeystoreLock acquire(final Path keystore) throws IOException, InterruptedException {
+        return lock(keystore, true);
+    }
+
+    /**
+     * Lock the keystore if nobody holds it, otherwise returns null.
+     */
+    static KeystoreLock tryAcquire(final Path keystore) throws IOException, InterruptedException {
+        return lock(keystore, false);
+    }
+
+    private static KeystoreLock lock(final Path keystore, final boolean wait) throws IOException, InterruptedException {
+        final Path file = AtomicFiles.resolve(keystore).normalize();
+        final Semaphore local = LOCAL.computeIfAbsent(file, f -> new Semaphore(1));
+        if (wait) local.acquire();
+        else if (!local.tryAcquire()) return null;
+
+        FileChannel channel = null;
+        boolean locked = false;
+        try {
+            channel = open(file);
+            final FileLock lock = wait ? channel.lock() : channel.tryLock();
+            if (lock == null) return null;
+            locked = true;
+            return new KeystoreLock(file, local, channel, lock);
+        } finally {
+            if (!locked) {
+                if (channel != null) channel.close();
+                local.release();
+            }
+        }
+    }
+
+    private static FileChannel open(final Path file) throws IOException {
+        final Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Hand changes over to the holder of the lock, as input lines with
+     * absolute paths, to be applied with the given settings. Returns the
+     * spool file, which the holder removes once the changes are saved.
+     */
+    static Path spool(final Path keystore, final String settings, final List<String> changes) throws IOException {
+        final Path directory = spoolDirectory(AtomicFiles.resolve(keystore));
+        Files.createDirectories(directory);
+
+        // Named after the time, so the holder applies them in order
+        final String name = String.format(Locale.ROOT, "%015d-%d-%d", System.currentTimeMillis(), ProcessHandle.current().pid(), SEQUENCE.incrementAndGet());
+        final Path temp = directory.resolve("." + name + ".tmp");
+        final Path spooled = directory.resolve(name + SPOOL_SUFFIX);
+        final List<String> lines = new ArrayList<>(changes.size() + 1);
+        lines.add(SETTINGS_PREFIX + settings);
+        lines.addAll(changes);
+        while (true) {
+            try {
+                Files.write(temp, lines, StandardCharsets.UTF_8);
+                break;
+            } catch (NoSuchFileException e) {
+                // Removed by the holder while it was empty
+                Files.createDirectories(directory);
+            }
+        }
+        Files.move(temp, spooled, StandardCopyOption.ATOMIC_MOVE);
+        return spooled;
+    }
+
+    /**
+     * The spool files to be applied with the given settings, oldest first.
+     * Spool files of waiters with other settings are left to them.
+     */
+    List<Path> spooled(final String settings) throws IOException {
+        final Path directory = spoolDirectory(this.keystore);
+        if (!Files.isDirectory(directory)) return List.of();
+        try (Stream<Path> files = Files.list(directory)) {
+            final List<Path> spooled = new ArrayList<>();
+            for (final Path file : (Iterable<Path>) files.filter(f -> f.getFileName().toString().endsWith(SPOOL_SUFFIX)).sorted()::iterator) {
+                if ((SETTINGS_PREFIX + settings).equals(firstLine(file))) spooled.add(file);
+            }
+            return spooled;
+        }
+    }
+
+    /**
+     * Open a spool file past its settings, at the first change.
+     */
+    static BufferedReader changes(final Path spooled) throws IOException {
+        final BufferedReader reader = Files.newBufferedReader(spooled, StandardCharsets.UTF_8);
+        reader.readLine();
+        return reader;
+    }
+
+    private static String firstLine(final Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return reader.readLine();
+        } catch (NoSuchFileException e) {
+            // Taken by its waiter meanwhile
+            return null;
+        }
+    }
+
+    /**
+     * Remove spool files whose changes are saved.
+     */
+    void consume(final List<Path> spooled) throws IOException {
+        for (final Path file : spooled) Files.deleteIfExists(file);
+    }
+
+    private static Path spoolDirectory(final Path file) {
+        return file.resolveSibling(file.getFileName() + ".spool");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            removeEmpty(spoolDirectory(this.keystore));
+            this.lock.release();
+            this.channel.close();
+        } finally {
+            this.local.release();
+        }
+    }
+
+    private static void removeEmpty(final Path directory) throws IOException {
+        try {
+            Files.deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // Changes of waiters with other settings, or being spooled
+        }
+    }
+}
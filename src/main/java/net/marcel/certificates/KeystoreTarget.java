@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A keystore to update, with its own password and format.
+ */
+final class KeystoreTarget {
+
+    /**
+     * Where the JDK packages are installed.
+     */
+    static final Path JVM_DIRECTORY = Path.of("/usr/lib/jvm");
+
+    private static final String ENV_PREFIX = "env:";
+
+    private final Path path;
+    private final String password;
+
+    /**
+     * The format to save in, null for the one of the update options
+     */
+    private final KeyStoreFormat format;
+
+    KeystoreTarget(final Path path, final String password, final KeyStoreFormat format) {
+        this.path = path;
+        this.password = password;
+        this.format = format;
+    }
+
+    /**
+     * Parse a target given as PATH[:FORMAT[:PASSWORD]], an empty format or
+     * password keeps the default one. The password is read from the first
+     * line of a file with "@FILE", or from an environment variable with
+     * "env:VARIABLE". Given inline, it shows in the command line of the
+     * process to every local user : only use that for throwaway keystores.
+     */
+    static KeystoreTarget parse(final String spec, final String defaultPassword) throws IOException {
+        final String[] parts = spec.split(":", 3);
+        if (parts[0].isEmpty()) throw new IllegalArgumentException("No keystore path in " + spec);
+        final KeyStoreFormat format = parts.length > 1 && !parts[1].isEmpty() ? KeyStoreFormat.parse(parts[1]) : null;
+        final String password = parts.length > 2 && !parts[2].isEmpty() ? password(parts[2]) : defaultPassword;
+        return new KeystoreTarget(Path.of(parts[0]), password, format);
+    }
+
+    /**
+     * Resolve a password given as @FILE or env:VARIABLE, any other is used
+     * as it is.
+     */
+    private static String password(final String spec) throws IOException {
+        if (spec.startsWith("@")) {
+            try (BufferedReader reader = Files.newBufferedReader(Path.of(spec.substring(1)))) {
+                final String line = reader.readLine();
+                return line == null ? "" : line;
+            }
+        }
+        if (spec.startsWith(ENV_PREFIX)) {
+            final String variable = spec.substring(ENV_PREFIX.length());
+            final String value = System.getenv(variable);
+            if (value == null) throw new IllegalArgumentException("Environment variable " + variable + " is not set");
+            return value;
+        }
+        return spec;
+    }
+
+    /**
+     * The cacerts files of the JDKs installed in the given directory, for
+     * both the current (lib/security) and the Java 8 (jre/lib/security)
+     * layout.
+     */
+    static List<KeystoreTarget> discover(final Path directory, final String password) throws IOException {
+        if (!Files.isDirectory(directory)) return List.of();
+        try (Stream<Path> installs = Files.list(directory)) {
+            return installs.sorted()
+                    .flatMap(install -> Stream.of(install.resolve("lib/security/cacerts"), install.resolve("jre/lib/security/cacerts")))
+                    .filter(Files::isRegularFile)
+                    .map(cacerts -> new KeystoreTarget(cacerts, password, null))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Drop the targets which are the same file as an earlier one, JDKs
+     * often link their cacerts to a shared keystore.
+     */
+    static List<KeystoreTarget> distinct(final List<KeystoreTarget> targets) throws IOException {
+        final Map<Path, KeystoreTarget> distinct = new LinkedHashMap<>();
+        for (final KeystoreTarget target : targets) {
+            final Path file = Files.exists(target.path) ? target.path.toRealPath() : target.path.toAbsolutePath().normalize();
+            distinct.putIfAbsent(file, target);
+        }
+        return new ArrayList<>(distinct.values());
+    }
+
+    Path getPath() {
+        return this.path;
+    }
+
+    String getPassword() {
+        return this.password;
+    }
+
+    KeyStoreFormat getFormat() {
+        return this.format;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A JKS keystore of trusted certificates which decodes a certificate only
+ * when it is asked for. It is built on a {@link JksIndex} : entries which are
+ * not replaced are written back byte for byte by {@link #engineStore}, only
+ * new entries are encoded. Private key entries are not supported, a keystore
+ * holding some must be loaded by the JDK.
+ * <p>
+ * Like the keystore handler using it, it is not thread safe.
+ */
+class LazyKeyStore extends KeyStoreSpi {
+
+    private final CertificateLoader certLoader;
+
+    /**
+     * Every entry in file order, by normalized alias
+     */
+    private final Map<String, LazyEntry> entries = new LinkedHashMap<>();
+
+    private LazyKeyStore(final CertificateLoader certLoader) {
+        this.certLoader = certLoader;
+    }
+
+    /**
+     * Open the indexed keystore, checking its integrity against password.
+     */
+    static KeyStore create(final JksIndex index, final char[] password, final CertificateLoader certLoader) throws IOException {
+        if (index.hasKeyEntries()) throw new IllegalArgumentException("Private key entries are not supported");
+        if (password != null && !index.verify(password)) {
+            throw new IOException("Keystore was tampered with, or password was incorrect", new UnrecoverableKeyException("Password verification failed"));
+        }
+
+        final LazyKeyStore spi = new LazyKeyStore(certLoader);
+        index.entries().forEach((alias, entry) -> spi.entries.put(alias, new LazyEntry(entry)));
+        final KeyStore keyStore = new KeyStore(spi, null, "JKS") {
+        };
+        try {
+            keyStore.load(null, null);
+        } catch (CertificateException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return keyStore;
+    }
+
+    @Override
+    public Key engineGetKey(final String alias, final char[] password) {
+        return null;
+    }
+
+    @Override
+    public Certificate[] engineGetCertificateChain(final String alias) {
+        return null;
+    }
+
+    @Override
+    public Certificate engineGetCertificate(final String alias) {
+        final LazyEntry entry = this.entries.get(normalize(alias));
+        if (entry == null) return null;
+        if (entry.certificate == null) {
+            try {
+                entry.certificate = this.certLoader.decode(new ByteArrayInputStream(entry.stored.getEncoded()));
+            } catch (CertificateException e) {
+                throw new IllegalStateException("Cannot decode the certificate of " + alias, e);
+            }
+        }
+        return entry.certificate;
+    }
+
+    @Override
+    public Date engineGetCreationDate(final String alias) {
+        final LazyEntry entry = this.entries.get(normalize(alias));
+        return entry == null ? null : new Date(entry.date);
+    }
+
+    @Override
+    public void engineSetKeyEntry(final String alias, final Key key, final char[] password, final Certificate[] chain) throws KeyStoreException {
+        throw new KeyStoreException("Private key entries are not supported");
+    }
+
+    @Override
+    public void engineSetKeyEntry(final String alias, final byte[] key, final Certificate[] chain) throws KeyStoreException {
+        throw new KeyStoreException("Private key entries are not supported");
+    }
+
+    @Override
+    public void engineSetCertificateEntry(final String alias, final Certificate cert) {
+        this.entries.put(normalize(alias), new LazyEntry(cert));
+    }
+
+    @Override
+    public void engineDeleteEntry(final String alias) {
+        this.entries.remove(normalize(alias));
+    }
+
+    @Override
+    public Enumeration<String> engineAliases() {
+        return Collections.enumeration(this.entries.keySet());
+    }
+
+    @Override
+    public boolean engineContainsAlias(final String alias) {
+        return this.entries.containsKey(normalize(alias));
+    }
+
+    @Override
+    public int engineSize() {
+        return this.entries.size();
+    }
+
+    @Override
+    public boolean engineIsKeyEntry(final String alias) {
+        return false;
+    }
+
+    @Override
+    public boolean engineIsCertificateEntry(final String alias) {
+        return this.entries.containsKey(normalize(alias));
+    }
+
+    @Override
+    public String engineGetCertificateAlias(final Certificate cert) {
+        try {
+            final String fingerprint = Fingerprint.of(cert);
+            for (final Map.Entry<String, LazyEntry> e : this.entries.entrySet()) {
+                if (fingerprint.equals(e.getValue().fingerprint())) return e.getKey();
+            }
+        } catch (CertificateEncodingException e) {
+            // No alias for it then
+        }
+        return null;
+    }
+
+    /**
+     * Write the keystore, copying untouched entries as they were read.
+     */
+    @Override
+    public void engineStore(final OutputStream stream, final char[] password) throws IOException, CertificateException {
+        if (password == null) throw new IllegalArgumentException("password can't be null");
+
+        final MessageDigest digest = JksWriter.preKeyedDigest(password);
+        final DataOutputStream out = new DataOutputStream(new DigestOutputStream(stream, digest));
+        out.writeInt(JksWriter.MAGIC);
+        out.writeInt(JksWriter.VERSION);
+        out.writeInt(this.entries.size());
+        for (final Map.Entry<String, LazyEntry> e : this.entries.entrySet()) {
+            final LazyEntry entry = e.getValue();
+            if (entry.stored != null) {
+                final ByteBuffer raw = entry.stored.raw();
+                out.write(raw.array(), raw.arrayOffset(), raw.remaining());
+            } else JksWriter.writeTrustedCertificate(out, e.getKey(), entry.certificate.getEncoded(), entry.date);
+        }
+        out.flush();
+        stream.write(digest.digest());
+        stream.flush();
+    }
+
+    @Override
+    public void engineLoad(final InputStream stream, final char[] password) throws IOException {
+        if (stream != null) throw new IOException("Use LazyKeyStore.create to open a keystore");
+    }
+
+    private static String normalize(final String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * A trusted certificate, either still as stored in the file or set since.
+     */
+    private static final class LazyEntry {
+
+        private final JksIndex.Entry stored;
+        private final long date;
+        private Certificate certificate;
+
+        private LazyEntry(final JksIndex.Entry stored) {
+            this.stored = stored;
+            this.date = stored.getDate();
+        }
+
+        private LazyEntry(final Certificate certificate) {
+            this.stored = null;
+            this.date = System.currentTimeMillis();
+            this.certificate = certificate;
+        }
+
+        private String fingerprint() throws CertificateEncodingException {
+            return this.stored != null ? this.stored.getFingerprint() : Fingerprint.of(this.certificate);
+        }
+    }
+}
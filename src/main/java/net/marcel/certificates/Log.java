@@ -0,0 +1,106 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered console output. Messages (e.g. "Adding ...") go to stdout,
+ * warnings to stderr, both are only written out when the buffer is full or
+ * on {@link #flush()}. Every console log shares the same buffers, which are
+ * also flushed when the JVM exits.
+ */
+class Log {
+
+    enum Level {
+        /**
+         * Warnings only
+         */
+        QUIET,
+        /**
+         * Warnings and one line per changed alias
+         */
+        NORMAL,
+        /**
+         * Everything, including unchanged aliases and timings
+         */
+        VERBOSE
+    }
+
+    private static final Writer STDOUT = console(FileDescriptor.out);
+    private static final Writer STDERR = console(FileDescriptor.err);
+    private static final Log CONSOLE = new Log(Level.NORMAL);
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(CONSOLE::flush));
+    }
+
+    private final Level level;
+    private final PrintWriter out;
+    private final PrintWriter err;
+
+    /**
+     * A log to the console with the given level.
+     */
+    Log(final Level level) {
+        this(level, STDOUT, STDERR);
+    }
+
+    Log(final Level level, final Writer out, final Writer err) {
+        this.level = level;
+        this.out = new PrintWriter(out, false);
+        this.err = new PrintWriter(err, false);
+    }
+
+    /**
+     * The default log.
+     */
+    static Log console() {
+        return CONSOLE;
+    }
+
+    private static Writer console(final FileDescriptor fd) {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fd), Charset.defaultCharset()), 1 << 16);
+    }
+
+    synchronized void warn(final String message) {
+        this.err.println(message);
+    }
+
+    synchronized void info(final String message) {
+        if (this.level.compareTo(Level.NORMAL) >= 0) this.out.println(message);
+    }
+
+    synchronized void debug(final String message) {
+        if (this.level == Level.VERBOSE) this.out.println(message);
+    }
+
+    boolean isVerbose() {
+        return this.level == Level.VERBOSE;
+    }
+
+    synchronized void flush() {
+        this.out.flush();
+        this.err.flush();
+    }
+}
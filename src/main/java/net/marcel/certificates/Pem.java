@@ -0,0 +1,64 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Minimal PEM support, enough to get at the DER encoding of certificates
+ * without decoding them, and to write it back.
+ */
+final class Pem {
+
+    static final String BEGIN = "-----BEGIN CERTIFICATE-----";
+    static final String END = "-----END CERTIFICATE-----";
+
+    private Pem() {
+    }
+
+    /**
+     * Returns the DER encoding of the first certificate of a PEM file, the
+     * content itself when it already looks like DER, otherwise null.
+     */
+    static byte[] firstCertificate(final byte[] content) {
+        final String text = new String(content, StandardCharsets.ISO_8859_1);
+        final int begin = text.indexOf(BEGIN);
+        if (begin < 0) return content.length > 0 && content[0] == 0x30 ? content : null;
+
+        final int end = text.indexOf(END, begin);
+        if (end < 0) return null;
+        return Base64.getMimeDecoder().decode(text.substring(begin + BEGIN.length(), end));
+    }
+
+    /**
+     * Returns true when the content holds more than one PEM certificate.
+     */
+    static boolean isBundle(final byte[] content) {
+        final String text = new String(content, StandardCharsets.ISO_8859_1);
+        final int first = text.indexOf(BEGIN);
+        return first >= 0 && text.indexOf(BEGIN, first + BEGIN.length()) >= 0;
+    }
+
+    /**
+     * PEM encode a DER certificate, with 64 characters per line as OpenSSL.
+     */
+    static byte[] encode(final byte[] der) {
+        final String base64 = Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(der);
+        return (BEGIN + "\n" + base64 + "\n" + END + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
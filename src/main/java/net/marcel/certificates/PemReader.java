@@ -0,0 +1,80 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Base64;
+
+/**
+ * Splits a stream of concatenated PEM certificates (like ca-certificates.crt)
+ * one certificate at a time. Text outside of the certificate blocks is
+ * ignored.
+ */
+class PemReader implements Closeable {
+
+    private final BufferedReader reader;
+    private final StringBuilder block = new StringBuilder();
+    private int lineNumber;
+    private int blockLineNumber;
+
+    PemReader(final Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    /**
+     * Returns the DER encoding of the next certificate, or null at the end of
+     * the stream.
+     *
+     * @throws IllegalArgumentException when the block is not valid base64,
+     *                                  the reader is positioned after it
+     */
+    byte[] next() throws IOException {
+        String line;
+        boolean inBlock = false;
+        while ((line = this.reader.readLine()) != null) {
+            this.lineNumber++;
+            final String trimmed = line.strip();
+            if (!inBlock) {
+                if (trimmed.equals(Pem.BEGIN)) {
+                    inBlock = true;
+                    this.blockLineNumber = this.lineNumber;
+                    this.block.setLength(0);
+                }
+            } else if (trimmed.equals(Pem.END)) {
+                return Base64.getMimeDecoder().decode(this.block.toString());
+            } else this.block.append(trimmed);
+        }
+
+        if (inBlock) throw new IOException("Unterminated certificate at line " + this.blockLineNumber);
+        return null;
+    }
+
+    /**
+     * The line where the last returned certificate started.
+     */
+    int getLineNumber() {
+        return this.blockLineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
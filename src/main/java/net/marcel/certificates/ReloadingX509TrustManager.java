@@ -0,0 +1,290 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * A trust manager following a keystore file, so running services pick up
+ * the trusted certificates saved by this tool without a restart. The file
+ * is polled in the background : its identity, size and modification time
+ * tell cheaply whether it may have changed, the digest of its content
+ * whether it really did. A change is only loaded once the file stayed the
+ * same for a quiet period, so a burst of updates is loaded once. The new
+ * delegate then replaces the old one in a single write.
+ * <p>
+ * Handshakes never wait for a reload : they use the delegate which was
+ * current when they started. When a changed file cannot be loaded the
+ * previous delegate is kept, see {@link #getLastFailure()}, and the file is
+ * tried again when it changes. Files are read whole and this tool replaces
+ * them with a rename, so a half written keystore is never seen.
+ */
+public final class ReloadingX509TrustManager extends X509ExtendedTrustManager implements Closeable {
+
+    /**
+     * Default time between two looks at the file, in milliseconds
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Default time the file has to stay the same before it is loaded, in
+     * milliseconds
+     */
+    public static final long DEFAULT_QUIET_PERIOD = CertificateWatcher.DEFAULT_QUIET_PERIOD;
+
+    private final Path keystore;
+    private final char[] password;
+    private final long quietPeriod;
+    private final ScheduledExecutorService poller;
+
+    private volatile Loaded current;
+    private volatile Exception lastFailure;
+
+    /**
+     * The state of the file when it was last seen changing and since when,
+     * and the last state which failed to load. Guarded by this.
+     */
+    private Stat pending;
+    private long pendingSince;
+    private Stat failed;
+
+    ReloadingX509TrustManager(final Path keystore, final String password, final long quietPeriod) throws IOException, GeneralSecurityException {
+        this.keystore = keystore;
+        this.password = password == null ? null : password.toCharArray();
+        this.quietPeriod = quietPeriod;
+        final Stat stat = Stat.of(keystore);
+        this.current = this.load(stat, Files.readAllBytes(keystore), 0);
+        this.poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "trust-reload " + keystore.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Follow the keystore with the default interval and quiet period.
+     */
+    public static ReloadingX509TrustManager open(final Path keystore, final String password) throws IOException, GeneralSecurityException {
+        return open(keystore, password, DEFAULT_INTERVAL, DEFAULT_QUIET_PERIOD);
+    }
+
+    /**
+     * Load the keystore, which has to exist, and look at it again every
+     * interval milliseconds. A null password skips the integrity check.
+     */
+    public static ReloadingX509TrustManager open(final Path keystore, final String password, final long interval, final long quietPeriod) throws IOException, GeneralSecurityException {
+        if (interval <= 0 || quietPeriod < 0) throw new IllegalArgumentException("Invalid interval " + interval + " or quiet period " + quietPeriod);
+        final ReloadingX509TrustManager manager = new ReloadingX509TrustManager(keystore, password, quietPeriod);
+        manager.poller.scheduleWithFixedDelay(manager::poll, interval, interval, TimeUnit.MILLISECONDS);
+        return manager;
+    }
+
+    /**
+     * Load the file now if it changed, without waiting for the quiet period.
+     * Returns true when the trusted certificates changed.
+     */
+    public synchronized boolean reload() throws IOException, GeneralSecurityException {
+        final Stat stat = Stat.of(this.keystore);
+        if (stat.equals(this.current.stat)) return false;
+
+        final Loaded loaded;
+        try {
+            loaded = this.load(stat, Files.readAllBytes(this.keystore), this.current.version + 1);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            this.failed = stat;
+            this.lastFailure = e;
+            throw e;
+        }
+        this.failed = null;
+        this.lastFailure = null;
+        final boolean changed = loaded.delegate != this.current.delegate;
+        this.current = loaded;
+        return changed;
+    }
+
+    /**
+     * One look at the file, from the polling thread.
+     */
+    private synchronized void poll() {
+        try {
+            final Stat stat = Stat.of(this.keystore);
+            if (stat.equals(this.current.stat) || stat.equals(this.failed)) {
+                this.pending = null;
+                return;
+            }
+
+            final long now = System.nanoTime();
+            if (!stat.equals(this.pending)) {
+                this.pending = stat;
+                this.pendingSince = now;
+            }
+            if (now - this.pendingSince < TimeUnit.MILLISECONDS.toNanos(this.quietPeriod)) return;
+
+            this.pending = null;
+            this.reload();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // The previous delegate stays in use
+            this.lastFailure = e;
+        }
+    }
+
+    private Loaded load(final Stat stat, final byte[] content, final long version) throws IOException, GeneralSecurityException {
+        final String digest = Fingerprint.of(content);
+        // Same content rewritten : keep the delegate, only remember the new state
+        if (this.current != null && digest.equals(this.current.digest)) return new Loaded(stat, digest, this.current.delegate, this.current.version);
+
+        final KeyStoreFormat format = KeyStoreFormat.detect(content);
+        final KeyStore keyStore = (format == null ? KeyStoreFormat.JKS : format).newKeyStore();
+        keyStore.load(new ByteArrayInputStream(content), this.password);
+
+        final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore);
+        for (final TrustManager manager : factory.getTrustManagers()) {
+            if (manager instanceof X509ExtendedTrustManager) return new Loaded(stat, digest, (X509ExtendedTrustManager) manager, version);
+        }
+        throw new GeneralSecurityException("No X509 trust manager for " + this.keystore);
+    }
+
+    /**
+     * Incremented each time a different content is loaded, 0 for the
+     * content loaded on open.
+     */
+    public long getVersion() {
+        return this.current.version;
+    }
+
+    /**
+     * Why the last changed file could not be loaded, null when it was.
+     */
+    public Exception getLastFailure() {
+        return this.lastFailure;
+    }
+
+    /**
+     * Stop polling, the last loaded certificates stay trusted.
+     */
+    @Override
+    public void close() {
+        this.poller.shutdownNow();
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+        this.current.delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType, final Socket socket) throws CertificateException {
+        this.current.delegate.checkClientTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType, final SSLEngine engine) throws CertificateException {
+        this.current.delegate.checkClientTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+        this.current.delegate.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType, final Socket socket) throws CertificateException {
+        this.current.delegate.checkServerTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType, final SSLEngine engine) throws CertificateException {
+        this.current.delegate.checkServerTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return this.current.delegate.getAcceptedIssuers();
+    }
+
+    /**
+     * What tells cheaply whether the file changed. The file key changes when
+     * the file is replaced by a rename, even within the same second.
+     */
+    private static final class Stat {
+
+        private final Object fileKey;
+        private final long size;
+        private final long lastModified;
+
+        private Stat(final Object fileKey, final long size, final long lastModified) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static Stat of(final Path file) throws IOException {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new Stat(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Stat)) return false;
+            final Stat stat = (Stat) o;
+            return this.size == stat.size && this.lastModified == stat.lastModified && Objects.equals(this.fileKey, stat.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.fileKey, this.size, this.lastModified);
+        }
+    }
+
+    /**
+     * A loaded content and the delegate built from it, replaced as a whole.
+     */
+    private static final class Loaded {
+
+        private final Stat stat;
+        private final String digest;
+        private final X509ExtendedTrustManager delegate;
+        private final long version;
+
+        Loaded(final Stat stat, final String digest, final X509ExtendedTrustManager delegate, final long version) {
+            this.stat = stat;
+            this.digest = digest;
+            this.delegate = delegate;
+            this.version = version;
+        }
+    }
+}
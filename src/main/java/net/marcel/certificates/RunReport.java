@@ -0,0 +1,384 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Timings and counters of one keystore update. Phases are also recorded as
+ * JFR events, and the whole report can be written as JSON. Safe to share
+ * between threads.
+ */
+class RunReport {
+
+    enum Phase {
+        /**
+         * Opening the existing keystore
+         */
+        LOAD,
+        /**
+         * Reading the input and applying the changes, wall clock
+         */
+        PROCESS,
+        /**
+         * Decoding certificates, summed over all decoding threads
+         */
+        DECODE,
+        /**
+         * Writing the keystore
+         */
+        SAVE;
+
+        String label() {
+            return this.name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final String keystore;
+    private final Map<Phase, LongAdder> nanos = new EnumMap<>(Phase.class);
+    private final LongAdder added = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final List<Pruned> pruned = Collections.synchronizedList(new ArrayList<>());
+    private volatile int entries;
+    private volatile long keystoreBytes;
+    private volatile boolean saved;
+
+    RunReport(final String keystore) {
+        this.keystore = keystore;
+        for (final Phase phase : Phase.values()) this.nanos.put(phase, new LongAdder());
+    }
+
+    /**
+     * Start over, for the next update of a keystore which stays loaded (see
+     * {@link TrustStore}).
+     */
+    void reset() {
+        for (final LongAdder phase : this.nanos.values()) phase.reset();
+        this.added.reset();
+        this.replaced.reset();
+        this.removed.reset();
+        this.failed.reset();
+        this.skipped.reset();
+        this.bytesRead.reset();
+        this.bytesWritten.reset();
+        this.pruned.clear();
+        this.entries = 0;
+        this.keystoreBytes = 0;
+        this.saved = false;
+    }
+
+    /**
+     * Start timing a phase, the time is accounted when the timer is stopped.
+     */
+    Timer start(final Phase phase) {
+        return new Timer(phase);
+    }
+
+    void add(final Phase phase, final long nanos) {
+        this.nanos.get(phase).add(nanos);
+    }
+
+    long nanos(final Phase phase) {
+        return this.nanos.get(phase).sum();
+    }
+
+    void added() {
+        this.added.increment();
+    }
+
+    void replaced() {
+        this.replaced.increment();
+    }
+
+    void removed() {
+        this.removed.increment();
+    }
+
+    /**
+     * A certificate could not be read or decoded.
+     */
+    void failed() {
+        this.failed.increment();
+    }
+
+    /**
+     * A change left the keystore as it was (same certificate, duplicate,
+     * superseded by a later change).
+     */
+    void skipped() {
+        this.skipped.increment();
+    }
+
+    void skipped(final long changes) {
+        this.skipped.add(changes);
+    }
+
+    /**
+     * A certificate failed validation, the action is one of "warned",
+     * "skipped" or "removed".
+     */
+    void pruned(final String alias, final String fingerprint, final String reason, final String action) {
+        this.pruned.add(new Pruned(alias, fingerprint, reason, action));
+    }
+
+    void bytesRead(final long bytes) {
+        this.bytesRead.add(bytes);
+    }
+
+    void bytesWritten(final long bytes) {
+        this.bytesWritten.add(bytes);
+    }
+
+    /**
+     * Record the final state of the keystore.
+     */
+    void keystore(final int entries, final long bytes, final boolean saved) {
+        this.entries = entries;
+        this.keystoreBytes = bytes;
+        this.saved = saved;
+    }
+
+    long getAdded() {
+        return this.added.sum();
+    }
+
+    long getReplaced() {
+        return this.replaced.sum();
+    }
+
+    long getRemoved() {
+        return this.removed.sum();
+    }
+
+    long getFailed() {
+        return this.failed.sum();
+    }
+
+    long getSkipped() {
+        return this.skipped.sum();
+    }
+
+    List<Pruned> getPruned() {
+        synchronized (this.pruned) {
+            return new ArrayList<>(this.pruned);
+        }
+    }
+
+    /**
+     * Emit the counters as a JFR event.
+     */
+    void commit() {
+        final RunEvent event = new RunEvent();
+        if (!event.shouldCommit()) return;
+        event.keystore = this.keystore;
+        event.added = this.getAdded();
+        event.replaced = this.getReplaced();
+        event.removed = this.getRemoved();
+        event.failed = this.getFailed();
+        event.skipped = this.getSkipped();
+        event.bytesRead = this.bytesRead.sum();
+        event.bytesWritten = this.bytesWritten.sum();
+        event.entries = this.entries;
+        event.saved = this.saved;
+        event.commit();
+    }
+
+    /**
+     * One line summary for the console.
+     */
+    String summary() {
+        final StringBuilder summary = new StringBuilder(String.format(Locale.ROOT,
+                "%d added, %d replaced, %d removed, %d skipped, %d failed;",
+                this.getAdded(), this.getReplaced(), this.getRemoved(), this.getSkipped(), this.getFailed()));
+        for (final Phase phase : Phase.values()) {
+            summary.append(String.format(Locale.ROOT, " %s %.1f ms", phase.label(), this.nanos(phase) / 1e6));
+        }
+        return summary.toString();
+    }
+
+    String toJson() {
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"keystore\": \"").append(escape(this.keystore)).append("\",\n");
+        json.append("  \"saved\": ").append(this.saved).append(",\n");
+        json.append("  \"entries\": ").append(this.entries).append(",\n");
+        json.append("  \"keystoreBytes\": ").append(this.keystoreBytes).append(",\n");
+        json.append("  \"added\": ").append(this.getAdded()).append(",\n");
+        json.append("  \"replaced\": ").append(this.getReplaced()).append(",\n");
+        json.append("  \"removed\": ").append(this.getRemoved()).append(",\n");
+        json.append("  \"skipped\": ").append(this.getSkipped()).append(",\n");
+        json.append("  \"failed\": ").append(this.getFailed()).append(",\n");
+        json.append("  \"bytesRead\": ").append(this.bytesRead.sum()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(this.bytesWritten.sum()).append(",\n");
+        json.append("  \"phasesMillis\": {");
+        for (final Phase phase : Phase.values()) {
+            json.append(phase.ordinal() == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.ROOT, "    \"%s\": %.3f", phase.label(), this.nanos(phase) / 1e6));
+        }
+        json.append("\n  },\n  \"pruned\": [");
+        final List<Pruned> pruned = this.getPruned();
+        for (int i = 0; i < pruned.size(); i++) {
+            final Pruned p = pruned.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"alias\": \"").append(escape(p.getAlias()))
+                    .append("\", \"fingerprint\": \"").append(p.getFingerprint())
+                    .append("\", \"reason\": \"").append(escape(p.getReason()))
+                    .append("\", \"action\": \"").append(p.getAction()).append("\"}");
+        }
+        return json.append(pruned.isEmpty() ? "]\n}\n" : "\n  ]\n}\n").toString();
+    }
+
+    void write(final Path file) throws IOException {
+        AtomicFiles.write(file, this.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String escape(final String value) {
+        final StringBuilder escaped = new StringBuilder(value.length());
+        for (final char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') escaped.append('\\').append(c);
+            else if (c < 0x20) escaped.append(String.format("\\u%04x", (int) c));
+            else escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * A certificate which failed validation, see {@link CertificateValidator}.
+     */
+    static final class Pruned {
+
+        private final String alias;
+        private final String fingerprint;
+        private final String reason;
+        private final String action;
+
+        private Pruned(final String alias, final String fingerprint, final String reason, final String action) {
+            this.alias = alias;
+            this.fingerprint = fingerprint;
+            this.reason = reason;
+            this.action = action;
+        }
+
+        String getAlias() {
+            return this.alias;
+        }
+
+        String getFingerprint() {
+            return this.fingerprint;
+        }
+
+        String getReason() {
+            return this.reason;
+        }
+
+        String getAction() {
+            return this.action;
+        }
+    }
+
+    /**
+     * Times a phase, see {@link #start(Phase)}.
+     */
+    final class Timer {
+
+        private final Phase phase;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start = System.nanoTime();
+
+        private Timer(final Phase phase) {
+            this.phase = phase;
+            this.event.begin();
+        }
+
+        void stop() {
+            RunReport.this.add(this.phase, System.nanoTime() - this.start);
+            if (this.event.shouldCommit()) {
+                this.event.phase = this.phase.label();
+                this.event.keystore = RunReport.this.keystore;
+                this.event.commit();
+            }
+        }
+    }
+
+    @Name("net.marcel.certificates.Phase")
+    @Label("Keystore Update Phase")
+    @Category("CA Certificates")
+    static final class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Keystore")
+        String keystore;
+    }
+
+    @Name("net.marcel.certificates.Run")
+    @Label("Keystore Update")
+    @Category("CA Certificates")
+    static final class RunEvent extends Event {
+
+        @Label("Keystore")
+        String keystore;
+
+        @Label("Added")
+        long added;
+
+        @Label("Replaced")
+        long replaced;
+
+        @Label("Removed")
+        long removed;
+
+        @Label("Failed")
+        long failed;
+
+        @Label("Skipped")
+        long skipped;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Saved")
+        boolean saved;
+    }
+}
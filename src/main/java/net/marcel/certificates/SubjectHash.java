@@ -0,0 +1,195 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * The OpenSSL subject hash of certificates (as "openssl x509 -subject_hash"),
+ * which names the links of a hashed certificate directory. It is the SHA-1
+ * digest of the canonical DER encoding of the subject : strings as lower
+ * case UTF-8 with whitespace trimmed and collapsed, without the outer
+ * SEQUENCE. The first four bytes, little endian, are printed as hex.
+ */
+final class SubjectHash {
+
+    private static final int SEQUENCE = 0x30;
+    private static final int SET = 0x31;
+    private static final int UTF8_STRING = 0x0c;
+    private static final int PRINTABLE_STRING = 0x13;
+    private static final int T61_STRING = 0x14;
+    private static final int IA5_STRING = 0x16;
+    private static final int VISIBLE_STRING = 0x1a;
+    private static final int UNIVERSAL_STRING = 0x1c;
+    private static final int BMP_STRING = 0x1e;
+
+    private SubjectHash() {
+    }
+
+    static String of(final X500Principal subject) {
+        final byte[] canonical = canonical(subject.getEncoded());
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(canonical);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+        final long hash = (digest[0] & 0xffL) | (digest[1] & 0xffL) << 8 | (digest[2] & 0xffL) << 16 | (digest[3] & 0xffL) << 24;
+        return String.format(Locale.ROOT, "%08x", hash);
+    }
+
+    /**
+     * The canonical encoding of a DER encoded name.
+     */
+    static byte[] canonical(final byte[] name) {
+        final Der outer = new Der(name, 0);
+        if (outer.tag != SEQUENCE) throw new IllegalArgumentException("Not a name");
+
+        final ByteArrayOutputStream canonical = new ByteArrayOutputStream();
+        for (final Der rdn : outer.children()) {
+            if (rdn.tag != SET) throw new IllegalArgumentException("Not a relative distinguished name");
+            final List<byte[]> attributes = new ArrayList<>();
+            for (final Der attribute : rdn.children()) {
+                final List<Der> typeAndValue = attribute.children();
+                if (attribute.tag != SEQUENCE || typeAndValue.size() != 2) throw new IllegalArgumentException("Not an attribute");
+                final Der type = typeAndValue.get(0);
+                final Der value = typeAndValue.get(1);
+                final String text = decode(value);
+                final byte[] encodedValue = text == null ? value.encoded() : tlv(UTF8_STRING, canonicalize(text).getBytes(StandardCharsets.UTF_8));
+                attributes.add(tlv(SEQUENCE, concat(type.encoded(), encodedValue)));
+            }
+            // DER orders the elements of a SET OF by their encoding
+            attributes.sort(Arrays::compareUnsigned);
+            canonical.writeBytes(tlv(SET, concat(attributes.toArray(new byte[0][]))));
+        }
+        return canonical.toByteArray();
+    }
+
+    /**
+     * The text of the string types OpenSSL canonicalizes, null for others.
+     */
+    private static String decode(final Der value) {
+        final Charset charset = switch (value.tag) {
+            case UTF8_STRING -> StandardCharsets.UTF_8;
+            case PRINTABLE_STRING, T61_STRING, IA5_STRING, VISIBLE_STRING -> StandardCharsets.ISO_8859_1;
+            case BMP_STRING -> StandardCharsets.UTF_16BE;
+            case UNIVERSAL_STRING -> Charset.forName("UTF-32BE");
+            default -> null;
+        };
+        return charset == null ? null : new String(value.content(), charset);
+    }
+
+    /**
+     * Trim and collapse ASCII whitespace, lower case ASCII letters.
+     */
+    private static String canonicalize(final String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && isSpace(text.charAt(start))) start++;
+        while (end > start && isSpace(text.charAt(end - 1))) end--;
+
+        final StringBuilder canonical = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (isSpace(c)) {
+                canonical.append(' ');
+                while (i + 1 < end && isSpace(text.charAt(i + 1))) i++;
+            } else if (c >= 'A' && c <= 'Z') canonical.append((char) (c + ('a' - 'A')));
+            else canonical.append(c);
+        }
+        return canonical.toString();
+    }
+
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c >= '\t' && c <= '\r';
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    private static byte[] tlv(final int tag, final byte[] content) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        if (content.length < 0x80) out.write(content.length);
+        else {
+            final int bytes = (Integer.SIZE - Integer.numberOfLeadingZeros(content.length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) out.write(content.length >>> (i * 8));
+        }
+        out.writeBytes(content);
+        return out.toByteArray();
+    }
+
+    /**
+     * A DER element within a buffer.
+     */
+    private static final class Der {
+
+        private final byte[] buffer;
+        private final int start;
+        private final int tag;
+        private final int contentStart;
+        private final int end;
+
+        private Der(final byte[] buffer, final int start) {
+            this.buffer = buffer;
+            this.start = start;
+            this.tag = buffer[start] & 0xff;
+            int length = buffer[start + 1] & 0xff;
+            int position = start + 2;
+            if (length >= 0x80) {
+                final int bytes = length & 0x7f;
+                if (bytes == 0 || bytes > 3) throw new IllegalArgumentException("Unsupported DER length");
+                length = 0;
+                for (int i = 0; i < bytes; i++) length = length << 8 | buffer[position++] & 0xff;
+            }
+            this.contentStart = position;
+            this.end = position + length;
+            if (this.end > buffer.length) throw new IllegalArgumentException("Truncated DER element");
+        }
+
+        private List<Der> children() {
+            final List<Der> children = new ArrayList<>();
+            for (int position = this.contentStart; position < this.end; ) {
+                final Der child = new Der(this.buffer, position);
+                children.add(child);
+                position = child.end;
+            }
+            return children;
+        }
+
+        private byte[] content() {
+            return Arrays.copyOfRange(this.buffer, this.contentStart, this.end);
+        }
+
+        private byte[] encoded() {
+            return Arrays.copyOfRange(this.buffer, this.start, this.end);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A compact, memory-mapped snapshot of the trusted certificates of a
+ * keystore, written next to it by {@link KeyStoreHandler#setSnapshot}.
+ * Opening one maps the file and checks its index, without password nor
+ * integrity pass : a certificate is only decoded when it is asked for, once.
+ * Safe to share between threads.
+ * <p>
+ * Layout, big endian : a header (magic, version, entry count, reserved),
+ * one record per entry sorted by alias (alias offset and length, DER offset
+ * and length, SHA-256 fingerprint), then the UTF-8 aliases and the DER
+ * encoded certificates. The snapshot is replaced atomically, a mapped
+ * snapshot keeps reading the file it was opened from.
+ */
+public final class TrustSnapshot {
+
+    static final int MAGIC = 0x43415453;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 48;
+    private static final int FINGERPRINT_SIZE = 32;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final AtomicReferenceArray<X509Certificate> decoded;
+
+    private TrustSnapshot(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("Not a trust snapshot");
+        if (buffer.getInt(4) != VERSION) throw new IOException("Unsupported trust snapshot version " + buffer.getInt(4));
+        this.count = buffer.getInt(8);
+        if (this.count < 0 || HEADER_SIZE + (long) this.count * RECORD_SIZE > buffer.limit()) throw new IOException("Truncated trust snapshot");
+        for (int i = 0; i < this.count; i++) {
+            final int record = record(i);
+            if (!this.fits(buffer.getInt(record), buffer.getInt(record + 4)) || !this.fits(buffer.getInt(record + 8), buffer.getInt(record + 12))) {
+                throw new IOException("Truncated trust snapshot");
+            }
+        }
+        this.decoded = new AtomicReferenceArray<>(this.count);
+    }
+
+    /**
+     * Map the snapshot file.
+     */
+    public static TrustSnapshot open(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TrustSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Read a snapshot held in memory.
+     */
+    static TrustSnapshot of(final ByteBuffer content) throws IOException {
+        return new TrustSnapshot(content);
+    }
+
+    /**
+     * Encode the given DER encoded certificates, by alias.
+     */
+    static ByteBuffer encode(final Map<String, byte[]> certificates) {
+        final SortedMap<String, byte[]> sorted = new TreeMap<>();
+        certificates.forEach((alias, encoded) -> sorted.put(normalize(alias), encoded));
+        final List<byte[]> aliases = new ArrayList<>(sorted.size());
+        long size = HEADER_SIZE + (long) sorted.size() * RECORD_SIZE;
+        for (final Map.Entry<String, byte[]> e : sorted.entrySet()) {
+            final byte[] alias = e.getKey().getBytes(StandardCharsets.UTF_8);
+            aliases.add(alias);
+            size += alias.length + e.getValue().length;
+        }
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many certificates for a trust snapshot");
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(0);
+        int offset = HEADER_SIZE + sorted.size() * RECORD_SIZE;
+        int i = 0;
+        for (final byte[] encoded : sorted.values()) {
+            final byte[] alias = aliases.get(i++);
+            buffer.putInt(offset).putInt(alias.length);
+            offset += alias.length;
+            buffer.putInt(offset).putInt(encoded.length);
+            offset += encoded.length;
+            buffer.put(Fingerprint.digest().digest(encoded));
+        }
+        i = 0;
+        for (final byte[] encoded : sorted.values()) buffer.put(aliases.get(i++)).put(encoded);
+        return buffer.flip();
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Every alias, sorted.
+     */
+    public List<String> aliases() {
+        final List<String> aliases = new ArrayList<>(this.count);
+        for (int i = 0; i < this.count; i++) aliases.add(this.alias(i));
+        return Collections.unmodifiableList(aliases);
+    }
+
+    public boolean contains(final String alias) {
+        return this.indexOf(alias) >= 0;
+    }
+
+    /**
+     * The SHA-256 fingerprint of the certificate under alias as lower case
+     * hex, null when there is none. Nothing is decoded.
+     */
+    public String getFingerprint(final String alias) {
+        final int index = this.indexOf(alias);
+        return index < 0 ? null : Fingerprint.hex(this.fingerprint(index));
+    }
+
+    /**
+     * The alias of the given certificate, found by fingerprint, or null.
+     */
+    public String getAlias(final Certificate cert) throws CertificateEncodingException {
+        final byte[] fingerprint = Fingerprint.digest().digest(cert.getEncoded());
+        for (int i = 0; i < this.count; i++) {
+            if (Arrays.equals(fingerprint, this.fingerprint(i))) return this.alias(i);
+        }
+        return null;
+    }
+
+    /**
+     * The certificate under alias, decoded the first time, or null.
+     */
+    public X509Certificate getCertificate(final String alias) throws CertificateException {
+        final int index = this.indexOf(alias);
+        return index < 0 ? null : this.certificate(index);
+    }
+
+    public TrustAnchor getTrustAnchor(final String alias) throws CertificateException {
+        final X509Certificate cert = this.getCertificate(alias);
+        return cert == null ? null : new TrustAnchor(cert, null);
+    }
+
+    /**
+     * A trust anchor for every entry, which decodes all of them.
+     */
+    public Set<TrustAnchor> getTrustAnchors() throws CertificateException {
+        final Set<TrustAnchor> anchors = new HashSet<>();
+        for (int i = 0; i < this.count; i++) anchors.add(new TrustAnchor(this.certificate(i), null));
+        return anchors;
+    }
+
+    private X509Certificate certificate(final int index) throws CertificateException {
+        final X509Certificate cached = this.decoded.get(index);
+        if (cached != null) return cached;
+
+        final X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(this.bytes(record(index) + 8)));
+        return this.decoded.compareAndSet(index, null, cert) ? cert : this.decoded.get(index);
+    }
+
+    private int indexOf(final String alias) {
+        final String key = normalize(alias);
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = this.alias(middle).compareTo(key);
+            if (comparison < 0) low = middle + 1;
+            else if (comparison > 0) high = middle - 1;
+            else return middle;
+        }
+        return -1;
+    }
+
+    private String alias(final int index) {
+        return new String(this.bytes(record(index)), StandardCharsets.UTF_8);
+    }
+
+    private byte[] fingerprint(final int index) {
+        final byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+        this.buffer.get(record(index) + 16, fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * The bytes at the offset and length stored at position.
+     */
+    private byte[] bytes(final int position) {
+        final byte[] bytes = new byte[this.buffer.getInt(position + 4)];
+        this.buffer.get(this.buffer.getInt(position), bytes);
+        return bytes;
+    }
+
+    private boolean fits(final int offset, final int length) {
+        return offset >= 0 && length >= 0 && (long) offset + length <= this.buffer.limit();
+    }
+
+    private static int record(final int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private static String normalize(final String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A keystore which can be read by any number of threads while it is being
+ * updated. Readers get an immutable {@link Snapshot} without locking.
+ * Updates run one at a time, under the lock shared with other processes
+ * (see {@link KeystoreLock}). An update is applied, saved, and only then
+ * published as a new snapshot, so readers see all of it or none of it.
+ * Unchanged entries are shared with the previous snapshot, and only new
+ * certificates are fetched from the keystore.
+ * <p>
+ * The command line updates keystores through here as well, see
+ * {@link #apply}.
+ * <p>
+ * Nothing is printed unless {@link UpdateCertificates.Options#output} says
+ * where. PKCS12 iteration counts set in the options are applied through JVM
+ * wide system properties while the keystore is stored : PKCS12 keystores
+ * the application stores meanwhile get them too, see
+ * {@link KeyStoreFormat#storePkcs12}.
+ */
+public final class TrustStore {
+
+    private final UpdateCertificates updater;
+    private final boolean publishing;
+    private volatile Snapshot snapshot;
+
+    /**
+     * True once an update was reported, the next one starts a new report
+     */
+    private boolean reported;
+
+    TrustStore(final UpdateCertificates updater) throws GeneralSecurityException {
+        this(updater, true);
+    }
+
+    /**
+     * A store which is not publishing never builds a snapshot, for the
+     * command line which does not read them.
+     */
+    TrustStore(final UpdateCertificates updater, final boolean publishing) throws GeneralSecurityException {
+        this.updater = updater;
+        this.publishing = publishing;
+        this.snapshot = publishing ? this.snapshot(null) : null;
+    }
+
+    /**
+     * Open the keystore, which is created on the first update when it does
+     * not exist.
+     */
+    public static TrustStore open(final Path keystore, final String password, final UpdateCertificates.Options options) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException {
+        final UpdateCertificates.Options own = options.copy();
+        if (own.getLog() == Log.console()) own.log(new Log(Log.Level.QUIET, Writer.nullWriter(), Writer.nullWriter()));
+        return new TrustStore(new UpdateCertificates(keystore.toString(), password, own));
+    }
+
+    /**
+     * Open the keystore and apply one update under the lock, as the command
+     * line does. When another update holds the lock, the changes given as
+     * input lines are handed over to it (see {@link KeystoreLock}), and null
+     * is returned when it applied them.
+     *
+     * @param loader shared with other keystores, or null
+     * @param spoolable the update as input lines, null when it cannot be handed over
+     */
+    static TrustStore apply(final Path keystore, final String password, final UpdateCertificates.Options options, final CertificateLoader loader,
+                            final List<String> spoolable, final UpdateCertificates.Update update)
+            throws IOException, GeneralSecurityException, InvalidKeystorePasswordException, UnableToSaveKeystoreException, InterruptedException {
+        final Log log = options.getLog();
+        final KeystoreLock available = KeystoreLock.tryAcquire(keystore);
+        Path spooled = null;
+        if (available == null) {
+            log.info("Waiting for another update of " + keystore);
+            if (spoolable != null) spooled = KeystoreLock.spool(keystore, options.settings(), spoolable);
+        }
+
+        try (KeystoreLock lock = available != null ? available : KeystoreLock.acquire(keystore)) {
+            if (spooled != null && Files.notExists(spooled)) {
+                log.debug("Changes applied by the other update");
+                log.flush();
+                return null;
+            }
+
+            final TrustStore store = new TrustStore(new UpdateCertificates(keystore.toString(), password, options, loader), false);
+            // Changes still spooled are applied along with those of the other waiters
+            store.update(lock, spooled != null ? uc -> {
+            } : update);
+            return store;
+        }
+    }
+
+    /**
+     * The latest published content, never blocks.
+     */
+    public Snapshot snapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Apply the changes in order, save and publish the result. When the
+     * keystore cannot be saved the changes are kept, and written with the
+     * next update, but not published. They are dropped when another process
+     * replaced the keystore meanwhile. Changes failing otherwise are dropped.
+     */
+    public Snapshot update(final Changes changes) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException, UnableToSaveKeystoreException, InterruptedException {
+        final List<CertificateChange> list = List.copyOf(changes.changes);
+        return this.update(uc -> uc.applyAll(list));
+    }
+
+    /**
+     * Bring the keystore in line with the certificate files of the
+     * directories, see {@link UpdateCertificates#reconcile}, then save and
+     * publish the result.
+     */
+    public Snapshot reconcile(final List<Path> directories) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException, UnableToSaveKeystoreException, InterruptedException {
+        final List<Path> copy = List.copyOf(directories);
+        return this.update(uc -> uc.reconcile(copy));
+    }
+
+    /**
+     * Publish the keystore as written by another process, if it changed.
+     */
+    public Snapshot refresh() throws IOException, GeneralSecurityException, InvalidKeystorePasswordException, UnableToSaveKeystoreException, InterruptedException {
+        return this.update(uc -> {
+        });
+    }
+
+    Path getKeystorePath() {
+        return this.updater.getKeystorePath();
+    }
+
+    RunReport getReport() {
+        return this.updater.getReport();
+    }
+
+    synchronized Snapshot update(final UpdateCertificates.Update update) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException, UnableToSaveKeystoreException, InterruptedException {
+        try (KeystoreLock lock = KeystoreLock.acquire(this.updater.getKeystorePath())) {
+            return this.update(lock, update);
+        }
+    }
+
+    /**
+     * Apply the update with the lock already held, starting from the keystore
+     * on disk when it changed meanwhile, and save it.
+     */
+    synchronized Snapshot update(final KeystoreLock lock, final UpdateCertificates.Update update) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException, UnableToSaveKeystoreException {
+        // Each update is reported on its own, counters and pruned aliases do not pile up
+        if (this.reported) this.updater.getReport().reset();
+        this.reported = true;
+        this.updater.reload();
+        try {
+            update.apply(this.updater);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            this.updater.discard();
+            throw e;
+        }
+        this.save(lock);
+        if (this.publishing && !this.updater.isStreamed()) this.snapshot = this.snapshot(this.snapshot);
+        return this.snapshot;
+    }
+
+    /**
+     * Save the update along with the changes other processes with the same
+     * settings spooled while waiting for the lock. Spooled changes arriving
+     * meanwhile are applied and saved in turn, until the spool stays empty.
+     * The run is reported once, at the end.
+     */
+    private void save(final KeystoreLock lock) throws IOException, GeneralSecurityException, UnableToSaveKeystoreException {
+        boolean saved = false;
+        List<Path> spooled = List.of();
+        do {
+            // The streamed keystore is not in memory, spooled changes are left to their senders
+            if (!this.updater.isStreamed()) {
+                spooled = lock.spooled(this.updater.getSettings());
+                this.updater.applySpooled(spooled);
+            }
+            saved |= this.updater.save();
+            lock.consume(spooled);
+        } while (!spooled.isEmpty());
+        this.updater.complete(saved);
+    }
+
+    /**
+     * Build a snapshot of the trusted certificates, sharing those which did
+     * not change with previous.
+     */
+    private Snapshot snapshot(final Snapshot previous) throws GeneralSecurityException {
+        final KeyStoreHandler keystore = this.updater.getKeystore();
+        final Map<String, Certificate> certificates = new HashMap<>();
+        final Map<String, String> fingerprints = new HashMap<>();
+        for (final String alias : keystore.aliases()) {
+            final String key = normalize(alias);
+            final String fingerprint = keystore.getFingerprint(alias);
+            final Certificate cert = previous != null && fingerprint != null && fingerprint.equals(previous.fingerprints.get(key))
+                    ? previous.certificates.get(key)
+                    : keystore.getTrustedCertificate(alias);
+            if (cert == null) continue;
+            certificates.put(key, cert);
+            fingerprints.put(key, fingerprint != null ? fingerprint : Fingerprint.of(cert));
+        }
+        return new Snapshot(previous == null ? 1 : previous.version + 1, certificates, fingerprints);
+    }
+
+    private static String normalize(final String alias) {
+        return alias.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The trusted certificates of the keystore at one point in time. Aliases
+     * are case insensitive.
+     */
+    public static final class Snapshot {
+
+        private final long version;
+        private final List<String> aliases;
+        private final Map<String, Certificate> certificates;
+        private final Map<String, String> fingerprints;
+
+        private Snapshot(final long version, final Map<String, Certificate> certificates, final Map<String, String> fingerprints) {
+            this.version = version;
+            final List<String> aliases = new ArrayList<>(certificates.keySet());
+            Collections.sort(aliases);
+            this.aliases = Collections.unmodifiableList(aliases);
+            this.certificates = certificates;
+            this.fingerprints = fingerprints;
+        }
+
+        /**
+         * Increases with every published snapshot.
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /**
+         * The aliases in lower case, sorted.
+         */
+        public List<String> aliases() {
+            return this.aliases;
+        }
+
+        public int size() {
+            return this.aliases.size();
+        }
+
+        public boolean contains(final String alias) {
+            return this.certificates.containsKey(normalize(alias));
+        }
+
+        public Certificate getCertificate(final String alias) {
+            return this.certificates.get(normalize(alias));
+        }
+
+        /**
+         * The SHA-256 fingerprint of the certificate under alias as lower case
+         * hex, or null.
+         */
+        public String getFingerprint(final String alias) {
+            return this.fingerprints.get(normalize(alias));
+        }
+
+        public Set<TrustAnchor> getTrustAnchors() {
+            final Set<TrustAnchor> anchors = new HashSet<>();
+            for (final Certificate cert : this.certificates.values()) {
+                if (cert instanceof X509Certificate) anchors.add(new TrustAnchor((X509Certificate) cert, null));
+            }
+            return anchors;
+        }
+    }
+
+    /**
+     * Changes to apply in one update, in order. Like on the command line,
+     * certificate files are added and removed under a "debian:" alias made
+     * of their file name.
+     */
+    public static final class Changes {
+
+        private final List<CertificateChange> changes = new ArrayList<>();
+
+        public Changes add(final Path file) {
+            this.changes.add(new CertificateChange(CertificateChange.Type.ADD, file.toString()));
+            return this;
+        }
+
+        /**
+         * Add a DER or PEM encoded certificate under alias, or under an alias
+         * derived from its subject when null.
+         */
+        public Changes add(final String alias, final byte[] encoded) {
+            this.changes.add(CertificateChange.inline(alias != null ? alias : "inline", alias, encoded.clone()));
+            return this;
+        }
+
+        public Changes remove(final Path file) {
+            this.changes.add(new CertificateChange(CertificateChange.Type.REMOVE, file.toString()));
+            return this;
+        }
+
+        public Changes removeAlias(final String alias) {
+            this.changes.add(CertificateChange.removal(alias));
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return this.changes.isEmpty();
+        }
+    }
+}
@@ -20,11 +20,49 @@
 package net.marcel.certificates;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 /**
  * This code is a re-implementation of the idea from Ludwig Nussel found in
@@ -36,68 +74,1149 @@ import java.security.GeneralSecurityException;
  */
 public class UpdateCertificates {
 
+    /**
+     * How many decoded certificates may be waiting to be applied, per worker.
+     */
+    private static final int PIPELINE_DEPTH = 4;
+
+    /**
+     * Appended to the keystore file name for its {@link TrustSnapshot}.
+     */
+    static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private final CertificateLoader certLoader;
     private final KeyStoreHandler keystore;
+    private final Log log;
+    private final RunReport report;
+    private final Path reportFile;
+
+    /**
+     * Number of threads decoding certificate files, 1 disables the pipeline.
+     */
+    private final int jobs;
+
+    /**
+     * Whether a cleared keystore is written as the changes are read, see
+     * {@link Options#stream(boolean)}.
+     */
+    private final boolean stream;
+    private final boolean collapseDuplicates;
+    private final char[] password;
+
+    /**
+     * Checks the certificates before they are added, null when disabled.
+     */
+    private final CertificateValidator validator;
+
+    /**
+     * Where the trusted certificates are exported on finish, null for none.
+     */
+    private final Path exportBundle;
+    private final Path exportHashed;
+
+    /**
+     * See {@link Options#settings()}
+     */
+    private final String settings;
+
+    /**
+     * The keystore written by a streamed rebuild, null before.
+     */
+    private JksWriter streamed;
 
     public UpdateCertificates(final String keystoreFile, final String password, final boolean clear) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException {
-        this.keystore = new KeyStoreHandler(keystoreFile, password.toCharArray(), clear);
+        this(keystoreFile, password, clear, 1);
     }
 
-    public static void main(final String[] args) throws IOException, GeneralSecurityException {
+    public UpdateCertificates(final String keystoreFile, final String password, final boolean clear, final int jobs) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException {
+        this(keystoreFile, password, new Options().clear(clear).jobs(jobs));
+    }
+
+    public UpdateCertificates(final String keystoreFile, final String password, final Options options) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException {
+        this(keystoreFile, password, options, null);
+    }
+
+    /**
+     * Update with the given loader, shared with the updates of other
+     * keystores, or with a loader of its own when null.
+     */
+    UpdateCertificates(final String keystoreFile, final String password, final Options options, final CertificateLoader certLoader) throws IOException, GeneralSecurityException, InvalidKeystorePasswordException {
+        this.log = options.log;
+        this.report = new RunReport(keystoreFile);
+        this.reportFile = options.reportFile;
+        this.jobs = options.jobs;
+        if (options.stream && !options.clear) throw new IllegalArgumentException("Streaming requires a cleared keystore");
+        if (options.stream && options.format == KeyStoreFormat.PKCS12) throw new IllegalArgumentException("Only JKS keystores can be streamed");
+        if (options.stream && options.snapshot) throw new IllegalArgumentException("Streamed keystores have no snapshot");
+        if (options.stream && (options.exportBundle != null || options.exportHashed != null)) throw new IllegalArgumentException("Streamed keystores cannot be exported");
+        this.exportBundle = options.exportBundle;
+        this.exportHashed = options.exportHashed;
+        this.settings = options.settings();
+        this.stream = options.stream;
+        this.collapseDuplicates = options.collapseDuplicates;
+        this.password = password.toCharArray();
+
+        if (certLoader != null) this.certLoader = certLoader;
+        else {
+            final CertificateCache cache = options.cacheFile == null ? null : new CertificateCache(options.cacheFile, this.log);
+            this.certLoader = new CertificateLoader(cache, this.log, this.report);
+        }
+        this.keystore = new KeyStoreHandler(keystoreFile, password.toCharArray(), options.clear, options.lazy, this.certLoader, this.log, this.report);
+        this.keystore.setCollapseDuplicates(options.collapseDuplicates);
+        this.keystore.setFormat(options.format);
+        this.keystore.setPkcs12Iterations(options.pkcs12MacIterations, options.pkcs12CertIterations);
+        this.validator = options.validation == ValidationPolicy.OFF ? null
+                : new CertificateValidator(options.validation, options.requireSelfSigned, options.requireCa);
+        this.keystore.setValidator(this.validator);
+        if (options.snapshot) this.keystore.setSnapshot(Path.of(keystoreFile + SNAPSHOT_SUFFIX));
+    }
+
+    public static void main(final String[] args) throws IOException, GeneralSecurityException, InterruptedException {
         String passwordString = "changeit";
-        boolean clear = false;
+        final Options options = new Options();
+        final List<KeystoreTarget> targets = new ArrayList<>();
+        boolean allJdks = false;
+        final List<Path> directories = new ArrayList<>();
+        final List<Path> watched = new ArrayList<>();
+        long debounce = CertificateWatcher.DEFAULT_QUIET_PERIOD;
+        Path bundle = null;
+        boolean framed = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--target" -> targets.add(KeystoreTarget.parse(args[++i], passwordString));
+                    case "--all-jdks" -> allJdks = true;
+                    case "--clear" -> options.clear(true);
+                    case "--stream" -> options.stream(true);
+                    case "--lazy" -> options.lazy(true);
+                    case "--format" -> options.format(KeyStoreFormat.parse(args[++i]));
+                    case "--pkcs12-mac-iterations" -> options.pkcs12MacIterations(Integer.parseInt(args[++i]));
+                    case "--pkcs12-cert-iterations" -> options.pkcs12CertIterations(Integer.parseInt(args[++i]));
+                    case "--jobs" -> options.jobs(Integer.parseInt(args[++i]));
+                    case "--parallel" -> options.jobs(Runtime.getRuntime().availableProcessors());
+                    case "--cache" -> options.cache(Path.of(args[++i]));
+                    case "--reconcile" -> directories.add(Path.of(args[++i]));
+                    case "--bundle" -> bundle = Path.of(args[++i]);
+                    case "--framed" -> framed = true;
+                    case "--collapse-duplicates" -> options.collapseDuplicates(true);
+                    case "--validate" -> options.validation(ValidationPolicy.valueOf(args[++i].toUpperCase(Locale.ENGLISH)));
+                    case "--require-self-signed" -> options.requireSelfSigned(true);
+                    case "--require-ca" -> options.requireCa(true);
+                    case "--snapshot" -> options.snapshot(true);
+                    case "--export-bundle" -> options.exportBundle(Path.of(args[++i]));
+                    case "--export-hashed" -> options.exportHashed(Path.of(args[++i]));
+                    case "--quiet" -> options.log(new Log(Log.Level.QUIET));
+                    case "--verbose" -> options.log(new Log(Log.Level.VERBOSE));
+                    case "--report" -> options.report(Path.of(args[++i]));
+                    case "--watch" -> watched.add(Path.of(args[++i]));
+                    case "--debounce" -> debounce = Long.parseLong(args[++i]);
+                    default -> usage();
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            usage();
+        }
+        final int modes = (bundle != null ? 1 : 0) + (directories.isEmpty() ? 0 : 1) + (watched.isEmpty() ? 0 : 1) + (framed ? 1 : 0);
+        if (modes > 1 || debounce < 0 || options.stream && (modes > 0 || !options.clear || options.format == KeyStoreFormat.PKCS12 || options.snapshot
+                || options.exportBundle != null || options.exportHashed != null)) usage();
 
-        if (args.length == 1 && args[0].equals("--clear")) clear = true;
-        else if (args.length > 0) {
-            System.err.println("Usage: java [--clear]");
+        if (allJdks) targets.addAll(KeystoreTarget.discover(KeystoreTarget.JVM_DIRECTORY, passwordString));
+        else if (targets.isEmpty()) targets.add(new KeystoreTarget(Path.of(System.getenv("JAVA_HOME") + "/lib/security/cacerts"), passwordString, null));
+        final List<KeystoreTarget> distinct = KeystoreTarget.distinct(targets);
+        if (distinct.isEmpty()) {
+            options.log.warn("No keystore found in " + KeystoreTarget.JVM_DIRECTORY);
+            options.log.flush();
             System.exit(1);
         }
 
-        try {
-            final UpdateCertificates uc = new UpdateCertificates(System.getenv("JAVA_HOME") + "/lib/security/cacerts", passwordString, clear);
+        if (distinct.size() > 1 && (options.stream || !watched.isEmpty())) usage();
+
+        final Update update;
+        List<String> spoolable = null;
+        if (bundle != null) {
+            final Path file = bundle;
+            update = uc -> {
+                try (Reader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+                    uc.processBundle(file.toString(), reader);
+                }
+            };
+        } else if (!directories.isEmpty()) update = uc -> uc.reconcile(directories);
+        else if (!watched.isEmpty()) update = uc -> uc.reconcile(watched);
+        else if (framed && distinct.size() == 1) update = uc -> uc.processFramed(Channels.newChannel(System.in));
+        else if (framed) {
+            final List<CertificateChange> changes = readFramed(Channels.newChannel(System.in), options.log);
+            update = uc -> uc.applyAll(changes);
+        } else {
             // Force reading of InputStream in UTF-8
-            uc.processChanges(new InputStreamReader(System.in, StandardCharsets.UTF_8));
-            uc.finish();
+            final List<String> lines = spoolable(new InputStreamReader(System.in, StandardCharsets.UTF_8), options.log);
+            // Plain changes are handed over to a running update, a cleared keystore is rebuilt in turn
+            if (!options.clear) spoolable = lines;
+            final String input = String.join("\n", lines);
+            update = uc -> uc.processChanges(new StringReader(input));
+        }
+
+        if (distinct.size() > 1) {
+            if (!updateAll(distinct, options, update)) System.exit(1);
+            return;
+        }
+
+        final KeystoreTarget target = distinct.get(0);
+        if (target.getFormat() != null) options.format(target.getFormat());
+        try {
+            final TrustStore store = TrustStore.apply(target.getPath(), target.getPassword(), options, null, spoolable, update);
+            if (store != null && !watched.isEmpty()) {
+                try (CertificateWatcher watcher = new CertificateWatcher(store, watched, debounce, options.log)) {
+                    watcher.run();
+                }
+            }
         } catch (InvalidKeystorePasswordException | UnableToSaveKeystoreException e) {
+            options.log.flush();
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    private static void usage() {
+        System.err.println("Usage: java [--target <path>[:<format>[:<password> | :@<file> | :env:<variable>]]... | --all-jdks] [--clear [--stream] | --lazy] [--jobs <n> | --parallel] [--cache <file>] [--collapse-duplicates] [--snapshot]"
+                + " [--export-bundle <file>] [--export-hashed <directory>]"
+                + " [--format <auto|jks|pkcs12>] [--pkcs12-mac-iterations <n>] [--pkcs12-cert-iterations <n>]"
+                + " [--validate <off|warn|skip|remove> [--require-self-signed] [--require-ca]]"
+                + " [--quiet | --verbose] [--report <file>]"
+                + " [--reconcile <directory>... | --bundle <file> | --framed | --watch <directory>... [--debounce <ms>]]");
+        System.exit(1);
+    }
+
     /**
-     * Until reader EOF, try to read changes and send each to {@link #parseLine(String)}.
+     * Read changes until reader EOF, then apply the last change of every
+     * alias in order (see {@link ChangePlan}) : changes which are superseded
+     * are never decoded. With more than one job the certificate files are
+     * decoded ahead by a worker pool, see {@link Pipeline}.
      */
     protected void processChanges(final Reader reader) throws IOException, GeneralSecurityException {
+        final ChangePlan plan = new ChangePlan();
+        readChanges(reader, this.log, plan::add);
+        this.log.debug(plan.superseded() + " superseded changes dropped");
+        this.report.skipped(plan.superseded());
+
+        if (this.stream) this.rebuild(plan);
+        else this.applyAll(plan.changes());
+    }
+
+    /**
+     * Read framed changes until channel EOF, see {@link FramedInput}, and
+     * apply them in order. The certificates come with the input, no file is
+     * opened.
+     */
+    protected void processFramed(final ReadableByteChannel channel) throws IOException, GeneralSecurityException {
+        final FramedInput input = new FramedInput(channel, this.log);
+        final RunReport.Timer timer = this.report.start(RunReport.Phase.PROCESS);
+        try (Pipeline pipeline = new Pipeline()) {
+            CertificateChange change;
+            while ((change = input.next()) != null) pipeline.add(change);
+            pipeline.drain();
+        } finally {
+            timer.stop();
+        }
+        this.report.bytesRead(input.getOffset());
+    }
+
+    private static List<CertificateChange> readFramed(final ReadableByteChannel channel, final Log log) throws IOException {
+        final FramedInput input = new FramedInput(channel, log);
+        final List<CertificateChange> changes = new ArrayList<>();
+        CertificateChange change;
+        while ((change = input.next()) != null) changes.add(change);
+        return changes;
+    }
+
+    /**
+     * Until reader EOF, parse changes and hand each over in order. Unknown
+     * lines are reported and skipped.
+     */
+    private static void readChanges(final Reader reader, final Log log, final ChangeHandler handler) throws IOException, GeneralSecurityException {
         String line;
         try (BufferedReader br = new BufferedReader(reader)) {
             while ((line = br.readLine()) != null) {
                 try {
-                    this.parseLine(line);
+                    final CertificateChange change = CertificateChange.parse(line);
+                    if (change != null) handler.accept(change);
                 } catch (UnknownInputException e) {
-                    System.err.println("Unknown input: " + line);
+                    log.warn("Unknown input: " + line);
                     // Keep processing for others lines
                 }
             }
         }
     }
 
+    /**
+     * Read the changes to hand over to another update, see
+     * {@link KeystoreLock#spool(Path, String, List)}.
+     */
+    private static List<String> spoolable(final Reader reader, final Log log) throws IOException, GeneralSecurityException {
+        final List<String> lines = new ArrayList<>();
+        readChanges(reader, log, change -> lines.add(change.toLine()));
+        return lines;
+    }
+
+    @FunctionalInterface
+    private interface ChangeHandler {
+        void accept(CertificateChange change) throws GeneralSecurityException;
+    }
+
+    /**
+     * Write the keystore from scratch with the certificates the changes leave,
+     * one entry at a time through a {@link JksWriter} : each certificate the
+     * plan adds is loaded, written and dropped. Neither the keystore nor the
+     * decoded certificates are held in memory, and cached files are not
+     * decoded at all unless they are validated.
+     */
+    private void rebuild(final ChangePlan plan) throws IOException, GeneralSecurityException {
+        final JksWriter writer = new JksWriter(Path.of(this.keystore.getFilename()), this.password);
+        try (writer) {
+            final RunReport.Timer process = this.report.start(RunReport.Phase.PROCESS);
+            try {
+                this.write(plan.additions(), writer);
+            } finally {
+                process.stop();
+            }
+            final RunReport.Timer save = this.report.start(RunReport.Phase.SAVE);
+            try {
+                writer.commit();
+            } finally {
+                save.stop();
+            }
+        }
+        this.report.bytesWritten(writer.bytes());
+        this.streamed = writer;
+    }
+
+    private void write(final Collection<CertificateChange> changes, final JksWriter writer) throws IOException, GeneralSecurityException {
+        final Map<String, String> aliasesByFingerprint = new HashMap<>();
+        for (final CertificateChange change : changes) {
+            // Without validation a cached file is written as cached, without decoding it
+            final CertificateCache.Entry cached = this.validator == null ? this.certLoader.cached(change.getPath()) : null;
+            Certificate cert = null;
+            final byte[] encoded;
+            final String fingerprint;
+            if (cached != null) {
+                encoded = cached.getEncoded();
+                fingerprint = cached.getFingerprint();
+            } else {
+                try {
+                    cert = this.certLoader.load(change.getPath());
+                } catch (IOException | CertificateException e) {
+                    this.keystore.unreadable(change.getPath(), e);
+                    continue;
+                }
+                encoded = cert.getEncoded();
+                fingerprint = Fingerprint.of(encoded);
+            }
+
+            final String problem = this.validator != null ? this.validator.problem(cert, fingerprint) : null;
+            if (problem != null && this.validator.getPolicy() != ValidationPolicy.WARN) {
+                this.log.info("Skipping " + change.getAlias() + ", " + problem);
+                this.report.pruned(change.getAlias(), fingerprint, problem, "skipped");
+                this.report.skipped();
+                continue;
+            } else if (problem != null) {
+                this.log.warn("Warning: " + change.getAlias() + ", " + problem);
+                this.report.pruned(change.getAlias(), fingerprint, problem, "warned");
+            }
+
+            final String duplicate = aliasesByFingerprint.putIfAbsent(fingerprint, change.getAlias());
+            if (duplicate != null && this.collapseDuplicates) {
+                this.log.info("Skipping " + change.getAlias() + ", same certificate as " + duplicate);
+                this.report.skipped();
+                continue;
+            } else if (duplicate != null) {
+                this.log.warn("Warning: " + change.getAlias() + " is the same certificate as " + duplicate);
+            }
+
+            this.log.info("Adding " + change.getAlias());
+            this.report.added();
+            writer.add(change.getAlias(), encoded, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Bring the "debian:" entries of the keystore in line with the certificate
+     * files (*.crt and *.pem) found in the given directories : entries without
+     * a file are removed, files which are missing or differ from their entry
+     * are added. Unchanged files are recognized by fingerprint and not decoded.
+     * When several directories contain the same file name the first one wins.
+     */
+    protected void reconcile(final List<Path> directories) throws IOException, GeneralSecurityException {
+        final RunReport.Timer timer = this.report.start(RunReport.Phase.PROCESS);
+        try {
+            this.reconcileTimed(directories);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void reconcileTimed(final List<Path> directories) throws IOException, GeneralSecurityException {
+        for (final Path directory : directories) {
+            if (!Files.isDirectory(directory)) this.log.warn("Warning: " + directory + " is not a directory, it provides no certificates");
+        }
+        final Map<String, Path> wanted = new TreeMap<>();
+        for (final List<Path> files : scan(directories)) {
+            for (final Path file : files) {
+                final Path previous = wanted.putIfAbsent(managedAliasOf(file), file);
+                if (previous != null) this.log.warn("Warning: ignoring " + file + ", already provided by " + previous);
+            }
+        }
+
+        final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+        wanted.entrySet().parallelStream().forEach(e -> {
+            final String fingerprint = this.certLoader.fingerprint(e.getValue().toString());
+            if (fingerprint != null) fingerprints.put(e.getKey(), fingerprint);
+        });
+
+        try (Pipeline pipeline = new Pipeline()) {
+            for (final String alias : this.keystore.aliases()) {
+                if (alias.startsWith(CertificateChange.ALIAS_PREFIX) && !wanted.containsKey(alias)) {
+                    // Only the managed alias, a bare alias of the same name was added by someone else
+                    pipeline.add(CertificateChange.removal(alias));
+                }
+            }
+            for (final Map.Entry<String, Path> e : wanted.entrySet()) {
+                final String fingerprint = fingerprints.get(e.getKey());
+                if (fingerprint == null || !fingerprint.equals(this.keystore.getFingerprint(e.getKey()))) {
+                    pipeline.add(new CertificateChange(CertificateChange.Type.ADD, e.getValue().toString()));
+                }
+            }
+            pipeline.drain();
+        }
+    }
+
+    /**
+     * Add every certificate of a PEM bundle, under an alias derived from its
+     * subject and fingerprint (see {@link CertificateChange#bundleAliasOf}).
+     * The bundle is read as a stream, one certificate at a time, and replaces
+     * the "bundle:" entries of a previous run : those no longer in the bundle
+     * are removed.
+     */
+    protected void processBundle(final String name, final Reader reader) throws IOException, GeneralSecurityException {
+        final Set<String> previous = new HashSet<>();
+        for (final String alias : this.keystore.aliases()) {
+            if (alias.startsWith(CertificateChange.BUNDLE_ALIAS_PREFIX)) previous.add(alias);
+        }
+
+        final Set<String> added;
+        final RunReport.Timer timer = this.report.start(RunReport.Phase.PROCESS);
+        try (PemReader pem = new PemReader(reader); Pipeline pipeline = new Pipeline()) {
+            while (true) {
+                final byte[] encoded;
+                try {
+                    encoded = pem.next();
+                } catch (IllegalArgumentException e) {
+                    this.keystore.unreadable(name + ":" + pem.getLineNumber(), e);
+                    continue;
+                }
+                if (encoded == null) break;
+                pipeline.add(CertificateChange.inline(name + ":" + pem.getLineNumber(), null, encoded));
+            }
+            pipeline.drain();
+            added = pipeline.added;
+        } finally {
+            timer.stop();
+        }
+
+        previous.removeAll(added);
+        for (final String alias : previous) this.keystore.deleteAlias(alias);
+    }
+
+    /**
+     * Walk the directories in parallel, returns the certificate files of
+     * each directory in a stable order.
+     */
+    static List<List<Path>> scan(final List<Path> directories) throws IOException {
+        try {
+            return directories.parallelStream().map(directory -> {
+                try {
+                    return certificateFiles(directory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The certificate files under directory, sorted. A directory which does
+     * not exist has none, and files deleted during the walk are skipped.
+     */
+    private static List<Path> certificateFiles(final Path directory) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return files;
+        Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                if (isCertificateFile(file)) files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                if (e != null && !(e instanceof NoSuchFileException)) throw e;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Returns true for a file holding one certificate, to be trusted under
+     * its own alias. Bundles like /etc/ssl/certs/ca-certificates.crt share
+     * the extension but hold many.
+     */
+    static boolean isCertificateFile(final Path file) {
+        return hasCertificateExtension(file) && Files.isRegularFile(file) && !isBundle(file);
+    }
+
+    /**
+     * Returns true when the file holds more than one PEM certificate, it is
+     * only read up to the second one.
+     */
+    static boolean isBundle(final Path file) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            int certificates = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.strip().equals(Pem.BEGIN) && ++certificates > 1) return true;
+            }
+            return false;
+        } catch (IOException e) {
+            // Reported when the certificate is loaded
+            return false;
+        }
+    }
+
+    /**
+     * The alias a certificate file is reconciled under, in lower case.
+     */
+    static String managedAliasOf(final Path file) {
+        return CertificateChange.aliasOf(file.getFileName().toString()).toLowerCase(Locale.ENGLISH);
+    }
+
+    static boolean hasCertificateExtension(final Path file) {
+        final String name = file.getFileName().toString().toLowerCase(Locale.ENGLISH);
+        return name.endsWith(".crt") || name.endsWith(".pem");
+    }
+
+    /**
+     * Apply the given changes in order.
+     */
+    void applyAll(final Collection<CertificateChange> changes) throws GeneralSecurityException {
+        final RunReport.Timer timer = this.report.start(RunReport.Phase.PROCESS);
+        try (Pipeline pipeline = new Pipeline()) {
+            for (final CertificateChange change : changes) pipeline.add(change);
+            pipeline.drain();
+        } finally {
+            timer.stop();
+        }
+    }
+
     protected void parseLine(final String line) throws GeneralSecurityException, UnknownInputException {
-        if (line.isBlank()) return;
+        final CertificateChange change = CertificateChange.parse(line);
+        if (change != null) this.apply(change);
+    }
+
+    private void apply(final CertificateChange change) throws GeneralSecurityException {
+        this.apply(change, null);
+    }
+
+    /**
+     * Apply a change, returns the alias of an added certificate.
+     */
+    private String apply(final CertificateChange change, final Certificate decoded) throws GeneralSecurityException {
+        if (change.getType() == CertificateChange.Type.REMOVE) {
+            this.keystore.deleteAlias(change.getAlias());
+            if (change.getFilename() != null) this.keystore.deleteAlias(change.getFilename());
+            return null;
+        }
+
+        if (decoded == null && change.getEncoded() == null) {
+            this.keystore.addAlias(change.getAlias(), change.getPath());
+            return change.getAlias();
+        }
+
+        Certificate cert = decoded;
+        if (cert == null) {
+            try {
+                cert = this.certLoader.decode(change.getEncoded());
+            } catch (CertificateException e) {
+                this.keystore.unreadable(change.getPath(), e);
+                return null;
+            }
+        }
+        final String alias = change.aliasFor(cert);
+        this.keystore.addAlias(alias, cert);
+        return alias;
+    }
+
+    /**
+     * Apply the changes other processes spooled, see {@link KeystoreLock}.
+     */
+    void applySpooled(final List<Path> spooled) throws IOException, GeneralSecurityException {
+        if (spooled.isEmpty()) return;
+        final ChangePlan plan = new ChangePlan();
+        for (final Path file : spooled) {
+            this.log.debug("Applying changes of " + file.getFileName());
+            readChanges(KeystoreLock.changes(file), this.log, plan::add);
+        }
+        this.applyAll(plan.changes());
+    }
+
+    /**
+     * Load the keystore again when another process changed it, see
+     * {@link KeyStoreHandler#reloadIfChanged()}.
+     */
+    void reload() throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        this.keystore.reloadIfChanged();
+    }
+
+    /**
+     * Drop the changes not saved yet, loading the keystore again.
+     */
+    void discard() throws GeneralSecurityException, InvalidKeystorePasswordException, IOException {
+        this.keystore.load();
+    }
+
+    KeyStoreHandler getKeystore() {
+        return this.keystore;
+    }
+
+    /**
+     * The keystore file being updated.
+     */
+    Path getKeystorePath() {
+        return Path.of(this.keystore.getFilename());
+    }
 
-        final String path = line.substring(1);
-        final String filename = path.substring(path.lastIndexOf("/") + 1);
-        final String alias = "debian:" + filename;
+    /**
+     * The settings changes spooled for this update must have been made with,
+     * see {@link Options#settings()}.
+     */
+    String getSettings() {
+        return this.settings;
+    }
 
-        if (line.startsWith("+")) this.keystore.addAlias(alias, path);
-        else if (line.startsWith("-")) {
-            this.keystore.deleteAlias(alias);
-            this.keystore.deleteAlias(filename);
-        } else throw new UnknownInputException(line);
+    RunReport getReport() {
+        return this.report;
+    }
+
+    /**
+     * True once the keystore was rebuilt without being held in memory.
+     */
+    boolean isStreamed() {
+        return this.streamed != null;
     }
 
     /**
      * Write the pending changes to the keystore file.
      */
     protected void finish() throws GeneralSecurityException, UnableToSaveKeystoreException {
-        this.keystore.save();
+        this.complete(this.save());
+    }
+
+    /**
+     * Save the keystore and the outputs derived from it, returns true when
+     * the keystore was written.
+     */
+    boolean save() throws GeneralSecurityException, UnableToSaveKeystoreException {
+        if (this.streamed == null) this.keystore.pruneInvalid();
+        final boolean saved = this.streamed != null || this.keystore.isDirty();
+        if (this.streamed == null) {
+            this.prepareExport();
+            final RunReport.Timer timer = this.report.start(RunReport.Phase.SAVE);
+            try {
+                this.keystore.save();
+                if (this.isExportStale()) this.export();
+            } finally {
+                timer.stop();
+            }
+        }
+        this.certLoader.saveCache();
+        return saved;
+    }
+
+    /**
+     * Report the run : JFR event, summary and report file.
+     */
+    void complete(final boolean saved) throws GeneralSecurityException {
+        final int entries = this.streamed != null ? this.streamed.size() : this.keystore.aliases().size();
+        this.report.keystore(entries, new File(this.keystore.getFilename()).length(), saved);
+        this.report.commit();
+        this.log.debug(this.report.summary());
+        if (this.reportFile != null) {
+            try {
+                this.report.write(this.reportFile);
+            } catch (IOException e) {
+                this.log.warn("Warning: there was a problem writing the report " + this.reportFile + ". Message:\n  " + e.getMessage());
+            }
+        }
+        this.log.flush();
+    }
+
+    /**
+     * Write the trusted certificates to the export outputs which differ from
+     * them, see {@link CertificateExport}.
+     */
+    private void export() throws GeneralSecurityException, UnableToSaveKeystoreException {
+        if (this.exportBundle == null && this.exportHashed == null) return;
+
+        final SortedMap<String, X509Certificate> certificates = new TreeMap<>();
+        for (final String alias : this.keystore.aliases()) {
+            final Certificate cert = this.keystore.getTrustedCertificate(alias);
+            if (cert instanceof X509Certificate) certificates.put(alias, (X509Certificate) cert);
+        }
+        try {
+            if (this.exportBundle != null) {
+                if (CertificateExport.writeBundle(this.exportBundle, certificates)) this.log.debug("Exported " + this.exportBundle);
+                else touch(this.exportBundle);
+            }
+            if (this.exportHashed != null) {
+                if (CertificateExport.writeHashed(this.exportHashed, certificates)) this.log.debug("Exported " + this.exportHashed);
+                else touch(this.exportHashed);
+            }
+        } catch (IOException e) {
+            throw new UnableToSaveKeystoreException("There was a problem exporting the certificates.", e);
+        }
+    }
+
+    /**
+     * Create the parent directories of the export outputs before the
+     * keystore is saved, so a run failing there changes nothing.
+     */
+    private void prepareExport() throws UnableToSaveKeystoreException {
+        try {
+            for (final Path output : new Path[]{this.exportBundle, this.exportHashed}) {
+                if (output != null) Files.createDirectories(output.toAbsolutePath().getParent());
+            }
+        } catch (IOException e) {
+            throw new UnableToSaveKeystoreException("There was a problem exporting the certificates.", e);
+        }
+    }
+
+    /**
+     * Returns true when an export output is missing or older than the
+     * keystore. An unchanged keystore is then not decoded for nothing, and an
+     * export which failed is written by the next run.
+     */
+    private boolean isExportStale() {
+        final long keystore = new File(this.keystore.getFilename()).lastModified();
+        for (final Path output : new Path[]{this.exportBundle, this.exportHashed}) {
+            if (output != null && output.toFile().lastModified() < keystore) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark an output which already had the content as up to date.
+     */
+    private static void touch(final Path output) throws IOException {
+        Files.setLastModifiedTime(output, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Apply the same update to several keystores concurrently. They share a
+     * certificate loader, so every certificate file is decoded only once.
+     * Each keystore is saved on its own : one failing does not stop the
+     * others. With a report file, the reports of all keystores are written to
+     * it as a JSON array.
+     *
+     * @return false when a keystore could not be updated
+     */
+    static boolean updateAll(final List<KeystoreTarget> targets, final Options options, final Update update) throws InterruptedException {
+        final CertificateCache cache = options.cacheFile == null ? null : new CertificateCache(options.cacheFile, options.log);
+        final CertificateLoader loader = new CertificateLoader(cache, options.log, new RunReport(""), true);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(targets.size(), Runtime.getRuntime().availableProcessors()));
+        final List<Future<RunReport>> results = new ArrayList<>();
+        try {
+            for (final KeystoreTarget target : targets) {
+                final Options targetOptions = options.copy().report(null);
+                if (target.getFormat() != null) targetOptions.format(target.getFormat());
+                results.add(executor.submit(() -> TrustStore.apply(target.getPath(), target.getPassword(), targetOptions, loader, null, update).getReport()));
+            }
+
+            boolean success = true;
+            final List<String> reports = new ArrayList<>();
+            for (int i = 0; i < targets.size(); i++) {
+                try {
+                    reports.add(results.get(i).get().toJson().strip());
+                } catch (ExecutionException e) {
+                    options.log.warn("Error: could not update " + targets.get(i).getPath() + ". Message:\n  " + e.getCause().getMessage());
+                    success = false;
+                }
+            }
+
+            if (options.reportFile != null) {
+                try {
+                    AtomicFiles.write(options.reportFile, ("[\n" + String.join(",\n", reports) + "\n]\n").getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    options.log.warn("Warning: there was a problem writing the report " + options.reportFile + ". Message:\n  " + e.getMessage());
+                }
+            }
+            options.log.flush();
+            return success;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * What an update does to the keystore before it is saved, see
+     * {@link TrustStore#apply}.
+     */
+    @FunctionalInterface
+    interface Update {
+        void apply(UpdateCertificates uc) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * Settings of an update, every setter returns this.
+     */
+    public static final class Options {
+
+        private boolean clear;
+        private boolean stream;
+        private boolean lazy;
+        private KeyStoreFormat format = KeyStoreFormat.AUTO;
+        private int pkcs12MacIterations = -1;
+        private int pkcs12CertIterations = -1;
+        private int jobs = 1;
+        private Path cacheFile;
+        private boolean collapseDuplicates;
+        private ValidationPolicy validation = ValidationPolicy.OFF;
+        private boolean requireSelfSigned;
+        private boolean requireCa;
+        private boolean snapshot;
+        private Path exportBundle;
+        private Path exportHashed;
+        private Log log = Log.console();
+        private Path reportFile;
+
+        /**
+         * Start from an empty keystore instead of the existing one.
+         */
+        public Options clear(final boolean clear) {
+            this.clear = clear;
+            return this;
+        }
+
+        /**
+         * Write the cleared keystore entry by entry while the changes of
+         * {@link UpdateCertificates#processChanges(Reader)} are read, instead of building it in
+         * memory first. Only JKS keystores are written this way.
+         */
+        public Options stream(final boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * Read the existing keystore without decoding its certificates : only
+         * the entries which are looked at are decoded and the untouched ones
+         * are written back as they were, see {@link LazyKeyStore}. Keystores
+         * which are not JKS or hold private keys are loaded as usual.
+         */
+        public Options lazy(final boolean lazy) {
+            this.lazy = lazy;
+            return this;
+        }
+
+        /**
+         * The format the keystore is saved in, by default the one of the
+         * existing file. The existing file is read in whatever format it is.
+         */
+        public Options format(final KeyStoreFormat format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Iteration count of the integrity MAC of a PKCS12 keystore, 0
+         * disables the MAC. By default the JDK one is used. It is applied
+         * through JVM wide system properties while the keystore is stored,
+         * see {@link KeyStoreFormat#storePkcs12}.
+         */
+        public Options pkcs12MacIterations(final int iterations) {
+            if (iterations < 0) throw new IllegalArgumentException("iterations must not be negative");
+            this.pkcs12MacIterations = iterations;
+            return this;
+        }
+
+        /**
+         * Iteration count of the certificate encryption of a PKCS12 keystore,
+         * 0 stores the certificates unencrypted. By default the JDK one is
+         * used. Like {@link #pkcs12MacIterations}, it is applied JVM wide
+         * while the keystore is stored.
+         */
+        public Options pkcs12CertIterations(final int iterations) {
+            if (iterations < 0) throw new IllegalArgumentException("iterations must not be negative");
+            this.pkcs12CertIterations = iterations;
+            return this;
+        }
+
+        /**
+         * Number of threads decoding certificate files, 1 disables the pipeline.
+         */
+        public Options jobs(final int jobs) {
+            if (jobs < 1) throw new IllegalArgumentException("jobs must be at least 1");
+            this.jobs = jobs;
+            return this;
+        }
+
+        /**
+         * Keep decoded certificates in the given file, see {@link CertificateCache}.
+         */
+        public Options cache(final Path cacheFile) {
+            this.cacheFile = cacheFile;
+            return this;
+        }
+
+        /**
+         * Skip certificates which are already trusted under another alias, see
+         * {@link KeyStoreHandler#setCollapseDuplicates(boolean)}.
+         */
+        public Options collapseDuplicates(final boolean collapseDuplicates) {
+            this.collapseDuplicates = collapseDuplicates;
+            return this;
+        }
+
+        /**
+         * What to do with certificates outside of their validity window, or
+         * failing the optional checks below, see {@link CertificateValidator}.
+         * With {@link ValidationPolicy#REMOVE} every trusted certificate of
+         * the keystore is checked before saving.
+         */
+        public Options validation(final ValidationPolicy validation) {
+            this.validation = validation;
+            return this;
+        }
+
+        /**
+         * Also require certificates to be self-signed, with a valid
+         * signature.
+         */
+        public Options requireSelfSigned(final boolean requireSelfSigned) {
+            this.requireSelfSigned = requireSelfSigned;
+            return this;
+        }
+
+        /**
+         * Also require certificates to carry CA basic constraints.
+         */
+        public Options requireCa(final boolean requireCa) {
+            this.requireCa = requireCa;
+            return this;
+        }
+
+        /**
+         * Also write a {@link TrustSnapshot} of the trusted certificates next
+         * to the keystore, named after it with a ".snapshot" suffix. Not
+         * available for streamed keystores.
+         */
+        public Options snapshot(final boolean snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        /**
+         * Also write the trusted certificates as a PEM bundle, when they
+         * changed. Not available for streamed keystores.
+         */
+        public Options exportBundle(final Path exportBundle) {
+            this.exportBundle = exportBundle;
+            return this;
+        }
+
+        /**
+         * Also write the trusted certificates as an OpenSSL hashed directory,
+         * when they changed. The directory is a symbolic link managed by this
+         * tool, see {@link CertificateExport#writeHashed}. Not available for
+         * streamed keystores.
+         */
+        public Options exportHashed(final Path exportHashed) {
+            this.exportHashed = exportHashed;
+            return this;
+        }
+
+        /**
+         * The settings which change what is written, as one line. Changes
+         * spooled by a waiting update are only applied by an update with the
+         * same settings, see {@link KeystoreLock}.
+         */
+        String settings() {
+            return String.join(" ",
+                    "format=" + this.format,
+                    "pkcs12-iterations=" + this.pkcs12MacIterations + "/" + this.pkcs12CertIterations,
+                    "collapse-duplicates=" + this.collapseDuplicates,
+                    "validate=" + this.validation,
+                    "require-self-signed=" + this.requireSelfSigned,
+                    "require-ca=" + this.requireCa,
+                    "snapshot=" + this.snapshot,
+                    "export-bundle=" + absolute(this.exportBundle),
+                    "export-hashed=" + absolute(this.exportHashed),
+                    "report=" + absolute(this.reportFile));
+        }
+
+        private static Path absolute(final Path path) {
+            return path == null ? null : path.toAbsolutePath().normalize();
+        }
+
+        /**
+         * A copy of these settings, to adjust for one keystore.
+         */
+        Options copy() {
+            final Options copy = new Options();
+            copy.clear = this.clear;
+            copy.stream = this.stream;
+            copy.lazy = this.lazy;
+            copy.format = this.format;
+            copy.pkcs12MacIterations = this.pkcs12MacIterations;
+            copy.pkcs12CertIterations = this.pkcs12CertIterations;
+            copy.jobs = this.jobs;
+            copy.cacheFile = this.cacheFile;
+            copy.collapseDuplicates = this.collapseDuplicates;
+            copy.validation = this.validation;
+            copy.requireSelfSigned = this.requireSelfSigned;
+            copy.requireCa = this.requireCa;
+            copy.snapshot = this.snapshot;
+            copy.exportBundle = this.exportBundle;
+            copy.exportHashed = this.exportHashed;
+            copy.log = this.log;
+            copy.reportFile = this.reportFile;
+            return copy;
+        }
+
+        Options log(final Log log) {
+            this.log = log;
+            return this;
+        }
+
+        Log getLog() {
+            return this.log;
+        }
+
+        /**
+         * Print one line per changed alias to out and warnings to err,
+         * instead of the console.
+         */
+        public Options output(final Writer out, final Writer err) {
+            this.log = new Log(Log.Level.NORMAL, out, err);
+            return this;
+        }
+
+        /**
+         * Write timings and counters as JSON to the given file.
+         */
+        public Options report(final Path reportFile) {
+            this.reportFile = reportFile;
+            return this;
+        }
+    }
+
+    /**
+     * Applies changes in order. With more than one job the certificates of
+     * additions are decoded by a pool of {@link #jobs} threads while earlier
+     * changes are applied, at most {@link #PIPELINE_DEPTH} per thread ahead.
+     * The result is the same as applying every change one after the other.
+     */
+    private final class Pipeline implements AutoCloseable {
+
+        private final ExecutorService executor = UpdateCertificates.this.jobs > 1 ? Executors.newFixedThreadPool(UpdateCertificates.this.jobs) : null;
+        private final Deque<PendingChange> pending = new ArrayDeque<>();
+
+        /**
+         * Aliases of the added certificates, lower case.
+         */
+        private final Set<String> added = new HashSet<>();
+
+        void add(final CertificateChange change) throws GeneralSecurityException {
+            if (this.executor == null) {
+                this.added(UpdateCertificates.this.apply(change, null));
+                return;
+            }
+
+            final CertificateLoader loader = UpdateCertificates.this.certLoader;
+            final Future<Certificate> certificate;
+            if (change.getEncoded() != null) certificate = this.executor.submit(() -> this.validated(loader.decode(change.getEncoded())));
+            else if (change.getType() == CertificateChange.Type.ADD && !UpdateCertificates.this.keystore.isCurrentFile(change.getAlias(), change.getPath())) {
+                certificate = this.executor.submit(() -> this.validated(loader.load(change.getPath())));
+            } else certificate = null; // A removal, or a cached file already trusted : nothing to decode
+            this.pending.add(new PendingChange(change, certificate));
+            if (this.pending.size() >= UpdateCertificates.this.jobs * PIPELINE_DEPTH) this.apply(this.pending.poll());
+        }
+
+        /**
+         * Run the checks of the validator on the worker, the result is cached
+         * for when the certificate is added.
+         */
+        private Certificate validated(final Certificate cert) throws CertificateEncodingException {
+            if (UpdateCertificates.this.validator != null) UpdateCertificates.this.validator.problem(cert);
+            return cert;
+        }
+
+        /**
+         * Apply every change still waiting.
+         */
+        void drain() throws GeneralSecurityException {
+            while (!this.pending.isEmpty()) this.apply(this.pending.poll());
+        }
+
+        private void apply(final PendingChange pending) throws GeneralSecurityException {
+            if (pending.certificate == null) {
+                this.added(UpdateCertificates.this.apply(pending.change, null));
+                return;
+            }
+
+            final Certificate cert;
+            try {
+                cert = pending.certificate.get();
+            } catch (ExecutionException e) {
+                UpdateCertificates.this.keystore.unreadable(pending.change.getPath(), e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while decoding certificates.", e);
+            }
+            this.added(UpdateCertificates.this.apply(pending.change, cert));
+        }
+
+        private void added(final String alias) {
+            if (alias != null) this.added.add(alias.toLowerCase(Locale.ENGLISH));
+        }
+
+        @Override
+        public void close() {
+            if (this.executor != null) this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A change waiting in the pipeline, with its certificate being decoded in
+     * the background when it is an addition.
+     */
+    private static final class PendingChange {
+
+        private final CertificateChange change;
+        private final Future<Certificate> certificate;
+
+        private PendingChange(final CertificateChange change, final Future<Certificate> certificate) {
+            this.change = change;
+            this.certificate = certificate;
+        }
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link CertificateCache}.
+ */
+public class CertificateCacheTest {
+
+    private final Path cacheFile = Path.of("./build/resources/test/cache");
+    private final Path certFile = Path.of("./build/resources/test/spi-cacert-2008.crt");
+    private final Path copyFile = Path.of("./build/resources/test/cached-copy.crt");
+
+    @BeforeEach
+    public void start() throws Exception {
+        Files.deleteIfExists(this.cacheFile);
+        Files.copy(this.certFile, this.copyFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * A certificate decoded once is served from the cache by the next run.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Certificate cert = new CertificateLoader(new CertificateCache(this.cacheFile)).load(this.certFile.toString());
+        final CertificateLoader first = new CertificateLoader(new CertificateCache(this.cacheFile));
+        assertNull(first.cachedFingerprint(this.certFile.toString()));
+        assertEquals(cert, first.load(this.certFile.toString()));
+        first.saveCache();
+
+        final CertificateLoader second = new CertificateLoader(new CertificateCache(this.cacheFile));
+        assertEquals(Fingerprint.of(cert), second.cachedFingerprint(this.certFile.toString()));
+        assertEquals(cert, second.load(this.certFile.toString()));
+    }
+
+    /**
+     * A corrupt cache file is ignored.
+     */
+    @Test
+    public void testCorrupt() throws Exception {
+        Files.write(this.cacheFile, new byte[]{0x43, 0x41, 0x43, 0x48, 0, 0, 0, 1, 0x7f});
+
+        final CertificateCache cache = new CertificateCache(this.cacheFile);
+        assertEquals(0, cache.size());
+        assertNotNull(new CertificateLoader(cache).load(this.certFile.toString()));
+        cache.save();
+        assertEquals(1, new CertificateCache(this.cacheFile).size());
+    }
+
+    /**
+     * Entries of removed files are dropped when the cache is saved.
+     */
+    @Test
+    public void testCompact() throws Exception {
+        final CertificateCache cache = new CertificateCache(this.cacheFile);
+        final CertificateLoader loader = new CertificateLoader(cache);
+        loader.load(this.certFile.toString());
+        loader.load(this.copyFile.toString());
+        cache.save();
+        assertEquals(2, new CertificateCache(this.cacheFile).size());
+
+        Files.delete(this.copyFile);
+        final CertificateCache reloaded = new CertificateCache(this.cacheFile);
+        reloaded.save();
+        assertEquals(1, reloaded.size());
+        assertEquals(1, new CertificateCache(this.cacheFile).size());
+    }
+
+    /**
+     * A file replaced by another of the same size and modification time is
+     * decoded again.
+     */
+    @Test
+    public void testReplacedContent() throws Exception {
+        final Path first = Path.of("./build/resources/test/test-ca-1.crt");
+        final Path second = Path.of("./build/resources/test/test-ca-2.crt");
+        assertEquals(Files.size(first), Files.size(second));
+        Files.copy(first, this.copyFile, StandardCopyOption.REPLACE_EXISTING);
+        final FileTime pinned = Files.getLastModifiedTime(this.copyFile);
+        final CertificateLoader loader = new CertificateLoader(new CertificateCache(this.cacheFile));
+        assertEquals(loader.load(first.toString()), loader.load(this.copyFile.toString()));
+        loader.saveCache();
+
+        Files.copy(second, this.copyFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(this.copyFile, pinned);
+        final CertificateLoader reloaded = new CertificateLoader(new CertificateCache(this.cacheFile));
+        assertNull(reloaded.cached(this.copyFile.toString()));
+        assertEquals(reloaded.load(second.toString()), reloaded.load(this.copyFile.toString()));
+    }
+
+    /**
+     * With a warm cache, neither a streamed rebuild nor the parallel pipeline
+     * decodes the unchanged certificate files.
+     */
+    @Test
+    public void testNoDecoding() throws Exception {
+        final String keystore = "./build/resources/test/cached-store";
+        final String changes = "+" + this.certFile + "\n+./build/resources/test/test-ca-1.crt\n";
+        new File(keystore).delete();
+        final AtomicInteger decoded = new AtomicInteger();
+
+        for (int run = 0; run < 2; run++) {
+            decoded.set(0);
+            final UpdateCertificates.Options options = new UpdateCertificates.Options().clear(true).stream(true);
+            final UpdateCertificates uc = new UpdateCertificates(keystore, "changeit", options, this.countingLoader(decoded));
+            uc.processChanges(new StringReader(changes));
+            uc.finish();
+            assertEquals(run == 0 ? 2 : 0, decoded.get());
+        }
+        assertEquals(2, new KeyStoreHandler(keystore, "changeit".toCharArray(), false).aliases().size());
+
+        decoded.set(0);
+        final UpdateCertificates uc = new UpdateCertificates(keystore, "changeit", new UpdateCertificates.Options().jobs(4), this.countingLoader(decoded));
+        uc.processChanges(new StringReader(changes));
+        uc.finish();
+        assertEquals(0, decoded.get());
+    }
+
+    private CertificateLoader countingLoader(final AtomicInteger decoded) {
+        return new CertificateLoader(new CertificateCache(this.cacheFile), new Log(Log.Level.QUIET), new RunReport("")) {
+            @Override
+            Certificate decode(final InputStream inputStream) throws CertificateException {
+                decoded.incrementAndGet();
+                return super.decode(inputStream);
+            }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.X509Certificate;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CertificateExportTest {
+
+    private final String filename = "./build/resources/test/export-store";
+    private final Path bundle = Path.of("./build/resources/test/export-bundle.pem");
+    private final Path hashed = Path.of("./build/resources/test/export-certs");
+
+    /**
+     * One run writes the keystore, the PEM bundle and the hashed directory
+     * from the same certificates; an unchanged run leaves the exports alone.
+     */
+    @Test
+    public void testExport() throws Exception {
+        new File(this.filename).delete();
+        Files.deleteIfExists(this.bundle);
+        final UpdateCertificates.Options options = new UpdateCertificates.Options().exportBundle(this.bundle).exportHashed(this.hashed);
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, "changeit", options);
+        uc.processChanges(new StringReader("+./build/resources/test/test-ca-1.crt\n+./build/resources/test/test-ca-2.crt\n"));
+        uc.finish();
+
+        final String pem = Files.readString(this.bundle);
+        assertEquals(2, pem.split("-----BEGIN CERTIFICATE-----", -1).length - 1);
+        assertTrue(Files.isSymbolicLink(this.hashed));
+        final CertificateLoader loader = new CertificateLoader();
+        assertEquals(loader.load("./build/resources/test/test-ca-1.crt"), loader.load(this.hashed.resolve("73cac522.0").toString()));
+        assertEquals(loader.load("./build/resources/test/test-ca-2.crt"), loader.load(this.hashed.resolve("6ad7d1fc.0").toString()));
+
+        final SortedMap<String, X509Certificate> certificates = new TreeMap<>();
+        certificates.put("debian:test-ca-1.crt", (X509Certificate) loader.load("./build/resources/test/test-ca-1.crt"));
+        certificates.put("debian:test-ca-2.crt", (X509Certificate) loader.load("./build/resources/test/test-ca-2.crt"));
+        assertFalse(CertificateExport.writeBundle(this.bundle, certificates));
+        assertFalse(CertificateExport.writeHashed(this.hashed, certificates));
+
+        // A removal switches the directory to a new version and drops the old one
+        final Path previous = Files.readSymbolicLink(this.hashed);
+        certificates.remove("debian:test-ca-2.crt");
+        assertTrue(CertificateExport.writeHashed(this.hashed, certificates));
+        assertFalse(Files.exists(this.hashed.resolve("6ad7d1fc.0")));
+        assertTrue(Files.exists(this.hashed.resolve("73cac522.0")));
+        assertFalse(Files.exists(this.hashed.resolveSibling(previous)));
+    }
+
+    /**
+     * Exports are skipped while they are newer than the keystore, and their
+     * directory is created before the keystore is saved.
+     */
+    @Test
+    public void testStale() throws Exception {
+        final Path nested = Path.of("./build/resources/test/export-nested/bundle.pem");
+        Files.deleteIfExists(nested);
+        Files.deleteIfExists(nested.getParent());
+        new File(this.filename).delete();
+        final UpdateCertificates.Options options = new UpdateCertificates.Options().exportBundle(nested);
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, "changeit", options);
+        uc.processChanges(new StringReader("+./build/resources/test/test-ca-1.crt\n"));
+        uc.finish();
+        assertTrue(Files.readString(nested).startsWith("-----BEGIN CERTIFICATE-----"));
+
+        // Unchanged, the export is left alone
+        final long keystore = new File(this.filename).lastModified();
+        Files.writeString(nested, "edited");
+        Files.setLastModifiedTime(nested, FileTime.fromMillis(keystore + 1000));
+        new UpdateCertificates(this.filename, "changeit", options).finish();
+        assertEquals("edited", Files.readString(nested));
+
+        // Older than the keystore, it is written again
+        Files.setLastModifiedTime(nested, FileTime.fromMillis(keystore - 1000));
+        new UpdateCertificates(this.filename, "changeit", options).finish();
+        assertTrue(Files.readString(nested).startsWith("-----BEGIN CERTIFICATE-----"));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link CertificateWatcher}.
+ */
+public class CertificateWatcherTest {
+
+    private final String filename = "./build/resources/test/watched-store";
+    private final char[] password = "changeit".toCharArray();
+
+    /**
+     * Files dropped into and removed from a watched directory end up in the
+     * keystore, even after the directory was deleted and created again.
+     */
+    @Test
+    public void testWatch() throws Exception {
+        final Path directory = Path.of("./build/resources/test/watched");
+        delete(directory);
+        Files.createDirectories(directory);
+        Files.deleteIfExists(Path.of(this.filename));
+
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, "changeit", true);
+        uc.reconcile(List.of(directory));
+        uc.finish();
+
+        try (CertificateWatcher watcher = new CertificateWatcher(new TrustStore(uc), List.of(directory), 50, Log.console())) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    watcher.run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            thread.start();
+
+            Files.copy(Path.of("./build/resources/test/test-ca-1.crt"), directory.resolve("one.crt"));
+            Files.copy(Path.of("./build/resources/test/test-ca-2.crt"), directory.resolve("two.pem"));
+            Files.writeString(directory.resolve("ignored.txt"), "not a certificate");
+            assertTrue(this.await(List.of("debian:one.crt", "debian:two.pem")));
+
+            Files.delete(directory.resolve("one.crt"));
+            assertTrue(this.await(List.of("debian:two.pem")));
+
+            // The watched directory itself goes away, and comes back
+            delete(directory);
+            assertTrue(this.await(List.of()));
+            assertTrue(thread.isAlive());
+            Files.createDirectories(directory.resolve("sub"));
+            Files.copy(Path.of("./build/resources/test/test-ca-1.crt"), directory.resolve("sub/one.crt"));
+            assertTrue(this.await(List.of("debian:one.crt")));
+
+            watcher.close();
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    /**
+     * A directory which does not exist yet is watched once it is created.
+     */
+    @Test
+    public void testMissingDirectory() throws Exception {
+        final Path directory = Path.of("./build/resources/test/watched-later");
+        delete(directory);
+        Files.deleteIfExists(Path.of(this.filename));
+
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, "changeit", true);
+        uc.finish();
+
+        try (CertificateWatcher watcher = new CertificateWatcher(new TrustStore(uc), List.of(directory), 50, new Log(Log.Level.QUIET))) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    watcher.run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            thread.start();
+
+            Files.createDirectories(directory);
+            Files.copy(Path.of("./build/resources/test/test-ca-1.crt"), directory.resolve("one.crt"));
+            assertTrue(this.await(List.of("debian:one.crt")));
+
+            watcher.close();
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    /**
+     * Like reconcile, an alias provided by several directories gets the file
+     * of the first one, whatever the order of the events.
+     */
+    @Test
+    public void testFirstDirectoryWins() throws Exception {
+        final Path first = Path.of("./build/resources/test/watched-first");
+        final Path second = Path.of("./build/resources/test/watched-second");
+        final Path one = Path.of("./build/resources/test/test-ca-1.crt");
+        final Path two = Path.of("./build/resources/test/test-ca-2.crt");
+        delete(first);
+        delete(second);
+        Files.createDirectories(first);
+        Files.createDirectories(second);
+        Files.copy(one, first.resolve("x.crt"));
+        Files.copy(two, second.resolve("x.crt"));
+        Files.deleteIfExists(Path.of(this.filename));
+
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, "changeit", true);
+        uc.reconcile(List.of(first, second));
+        uc.finish();
+        final String expected = this.fingerprint("debian:x.crt");
+
+        try (CertificateWatcher watcher = new CertificateWatcher(new TrustStore(uc), List.of(first, second), 50, new Log(Log.Level.QUIET))) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    watcher.run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            thread.start();
+
+            // The second copy going away leaves the first one in place
+            Files.delete(second.resolve("x.crt"));
+            Files.copy(one, second.resolve("y.crt"));
+            assertTrue(this.await(List.of("debian:x.crt", "debian:y.crt")));
+            assertEquals(expected, this.fingerprint("debian:x.crt"));
+
+            // Nor does it replace the first one when it comes back
+            Files.copy(two, second.resolve("x.crt"));
+            Files.delete(second.resolve("y.crt"));
+            assertTrue(this.await(List.of("debian:x.crt")));
+            assertEquals(expected, this.fingerprint("debian:x.crt"));
+
+            // Until the first one goes away
+            Files.delete(first.resolve("x.crt"));
+            for (int i = 0; i < 200 && expected.equals(this.fingerprint("debian:x.crt")); i++) Thread.sleep(50);
+            assertNotEquals(expected, this.fingerprint("debian:x.crt"));
+            assertEquals(List.of("debian:x.crt"), new KeyStoreHandler(this.filename, this.password, false).aliases());
+
+            watcher.close();
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    private String fingerprint(final String alias) throws Exception {
+        return new KeyStoreHandler(this.filename, this.password, false).getFingerprint(alias);
+    }
+
+    private static void delete(final Path directory) throws Exception {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private boolean await(final List<String> aliases) throws Exception {
+        for (int i = 0; i < 200; i++) {
+            if (Files.exists(Path.of(this.filename))
+                    && new KeyStoreHandler(this.filename, this.password, false).aliases().stream().sorted().collect(Collectors.toList()).equals(aliases)) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ChangePlan}.
+ */
+public class ChangePlanTest {
+
+    /**
+     * Only the last change of every alias is kept, in the order of these
+     * last changes, and a removal before an addition keeps removing the
+     * legacy alias.
+     */
+    @Test
+    public void testLastChangeWins() throws Exception {
+        final ChangePlan plan = new ChangePlan();
+        for (final String line : List.of("+/a/one.crt", "-/a/one.crt", "+/b/two.crt", "+/a/one.crt", "+/c/three.crt", "-/c/three.crt", "+/d/two.crt")) {
+            plan.add(CertificateChange.parse(line));
+        }
+
+        assertEquals(4, plan.superseded());
+        assertEquals(List.of("REMOVE one.crt", "ADD /a/one.crt", "REMOVE /c/three.crt", "ADD /d/two.crt"),
+                plan.changes().stream().map(c -> c.getType() + " " + c.getPath()).collect(Collectors.toList()));
+        assertEquals(List.of("/a/one.crt", "/d/two.crt"),
+                plan.additions().stream().map(CertificateChange::getPath).collect(Collectors.toList()));
+    }
+}
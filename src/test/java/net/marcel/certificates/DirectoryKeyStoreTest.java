@@ -0,0 +1,84 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.Collections;
+import java.util.List;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectoryKeyStoreTest {
+
+    private final Path directory = Path.of("./build/resources/test/cadir");
+
+    /**
+     * The certificate files are presented as trusted entries, but not the
+     * bundles once they were read, and the keystore follows changes of the
+     * directory.
+     */
+    @Test
+    public void testDirectory() throws Exception {
+        Files.createDirectories(this.directory);
+        for (final Path file : Files.list(this.directory).toArray(Path[]::new)) Files.delete(file);
+        Files.copy(Path.of("./build/resources/test/test-ca-1.crt"), this.directory.resolve("one.crt"));
+        Files.writeString(this.directory.resolve("README"), "not a certificate");
+        Files.writeString(this.directory.resolve("ca-certificates.crt"), Files.readString(Path.of("./build/resources/test/test-ca-1.crt"))
+                + Files.readString(Path.of("./build/resources/test/test-ca-2.crt")));
+
+        final KeyStore keyStore = KeyStore.getInstance(DirectoryKeyStore.TYPE, new CertificateDirectoryProvider());
+        keyStore.load(new CertificateDirectoryProvider.Directories(this.directory));
+        // Scanning reads no file, the bundle is only recognized when it is read
+        assertEquals(List.of("debian:ca-certificates.crt", "debian:one.crt"), Collections.list(keyStore.aliases()));
+        assertNull(keyStore.getCertificate("debian:ca-certificates.crt"));
+        assertEquals(List.of("debian:one.crt"), Collections.list(keyStore.aliases()));
+        assertTrue(keyStore.isCertificateEntry("debian:one.crt"));
+        assertNotNull(keyStore.getCertificate("debian:one.crt"));
+        assertEquals("debian:one.crt", keyStore.getCertificateAlias(keyStore.getCertificate("debian:one.crt")));
+
+        final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore);
+        assertEquals(1, factory.getTrustManagers().length);
+
+        Files.copy(Path.of("./build/resources/test/test-ca-2.crt"), this.directory.resolve("two.pem"), StandardCopyOption.REPLACE_EXISTING);
+        // Same second granularity on some file systems
+        this.directory.toFile().setLastModified(this.directory.toFile().lastModified() + 2000);
+        assertEquals(2, keyStore.size());
+        assertNotNull(keyStore.getCertificate("debian:two.pem"));
+
+        try {
+            keyStore.deleteEntry("debian:one.crt");
+            fail();
+        } catch (KeyStoreException e) {
+            assertEquals("CADIR keystores are read-only", e.getMessage());
+        }
+
+        final KeyStore listed = KeyStore.getInstance(DirectoryKeyStore.TYPE, new CertificateDirectoryProvider());
+        listed.load(new ByteArrayInputStream((this.directory + "\n").getBytes(StandardCharsets.UTF_8)), null);
+        // Not read by this one yet
+        assertEquals(3, listed.size());
+    }
+}
@@ -21,6 +21,17 @@ package net.marcel.certificates;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -31,6 +42,7 @@ import static org.junit.jupiter.api.Assertions.*;
 public class KeyStoreHandlerTest {
 
     private final String filename = "./build/resources/test/store";
+    private final String certPath = "./build/resources/test/spi-cacert-2008.crt";
     private final char[] password = "changeit".toCharArray();
 
     /**
@@ -85,4 +97,215 @@ public class KeyStoreHandlerTest {
             assertEquals("There was a problem saving the new Java keystore.", e.getMessage());
         }
     }
+
+    /**
+     * Re-adding the same certificate and removing an unknown alias is not a
+     * change : the file must not be rewritten.
+     */
+    @Test
+    public void testSaveUnchanged() throws Exception {
+        new File(this.filename).delete();
+        final KeyStoreHandler created = new KeyStoreHandler(this.filename, this.password, false);
+        created.addAlias("debian:spi-cacert-2008.crt", this.certPath);
+        created.save();
+
+        final File file = new File(this.filename);
+        assertTrue(file.setLastModified(1000L));
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password, false);
+        keystore.addAlias("debian:spi-cacert-2008.crt", this.certPath);
+        keystore.deleteAlias("debian:unknown.crt");
+        assertFalse(keystore.isDirty());
+        keystore.save();
+        assertEquals(1000L, file.lastModified());
+
+        keystore.deleteAlias("debian:spi-cacert-2008.crt");
+        assertTrue(keystore.isDirty());
+        keystore.save();
+        assertNotEquals(1000L, file.lastModified());
+    }
+
+    /**
+     * A keystore replaced by another process is never overwritten with the
+     * content loaded before : an unchanged handler loads it again, a changed
+     * one fails to save.
+     */
+    @Test
+    public void testReplacedOnDisk() throws Exception {
+        new File(this.filename).delete();
+        final KeyStoreHandler created = new KeyStoreHandler(this.filename, this.password, false);
+        created.addAlias("debian:spi-cacert-2008.crt", this.certPath);
+        created.save();
+
+        final KeyStoreHandler stale = new KeyStoreHandler(this.filename, this.password, false);
+        final KeyStoreHandler other = new KeyStoreHandler(this.filename, this.password, false);
+        other.addAlias("debian:test-ca-1.crt", "./build/resources/test/test-ca-1.crt");
+        other.save();
+
+        stale.save();
+        assertTrue(stale.contains("debian:test-ca-1.crt"));
+        assertTrue(new KeyStoreHandler(this.filename, this.password, false).contains("debian:test-ca-1.crt"));
+
+        other.addAlias("debian:test-ca-2.crt", "./build/resources/test/test-ca-2.crt");
+        other.save();
+        stale.deleteAlias("debian:spi-cacert-2008.crt");
+        assertThrows(UnableToSaveKeystoreException.class, stale::save);
+        assertTrue(new KeyStoreHandler(this.filename, this.password, false).contains("debian:test-ca-2.crt"));
+    }
+
+    /**
+     * Saving through a symbolic link replaces the file it points to and keeps
+     * its permissions.
+     */
+    @Test
+    public void testSaveThroughLink() throws Exception {
+        final Path target = Path.of("./build/resources/test/linked-store");
+        final Path link = Path.of("./build/resources/test/link");
+        Files.deleteIfExists(link);
+        Files.deleteIfExists(target);
+        new KeyStoreHandler(target.toString(), this.password, false).save();
+        Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rw-r-----"));
+        Files.createSymbolicLink(link, target.getFileName());
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(link.toString(), this.password, true);
+        keystore.addAlias("debian:spi-cacert-2008.crt", this.certPath);
+        keystore.save();
+
+        assertTrue(Files.isSymbolicLink(link));
+        assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(target)));
+        assertTrue(new KeyStoreHandler(target.toString(), this.password, false).contains("debian:spi-cacert-2008.crt"));
+    }
+
+    /**
+     * The same certificate under two aliases is reported as duplicate, and
+     * collapsed to one entry on demand.
+     */
+    @Test
+    public void testDuplicates() throws Exception {
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password, true);
+        keystore.addAlias("debian:a.crt", this.certPath);
+        keystore.addAlias("debian:b.crt", this.certPath);
+        assertEquals(1, keystore.duplicates().size());
+        assertEquals(2, keystore.aliases().size());
+
+        keystore.setCollapseDuplicates(true);
+        assertEquals(List.of("debian:a.crt"), keystore.aliases());
+        keystore.addAlias("debian:c.crt", this.certPath);
+        assertEquals(List.of("debian:a.crt"), keystore.aliases());
+
+        // The trust anchor survives the removal of the kept alias
+        keystore.deleteAlias("debian:a.crt");
+        assertEquals(List.of("debian:b.crt"), keystore.aliases());
+        keystore.deleteAlias("debian:c.crt");
+        keystore.deleteAlias("debian:b.crt");
+        assertTrue(keystore.aliases().isEmpty());
+    }
+
+    /**
+     * A lazily loaded keystore decodes none of its own certificates to
+     * delete one and add another, and keeps untouched entries as they were.
+     */
+    @Test
+    public void testLazy() throws Exception {
+        new File(this.filename).delete();
+        final KeyStoreHandler initial = new KeyStoreHandler(this.filename, this.password, false);
+        initial.addAlias("debian:spi.crt", this.certPath);
+        initial.addAlias("debian:test-ca-1.crt", "./build/resources/test/test-ca-1.crt");
+        initial.addAlias("debian:test-ca-2.crt", "./build/resources/test/test-ca-2.crt");
+        initial.save();
+        final KeyStore before = KeyStore.getInstance("JKS");
+        before.load(Files.newInputStream(Path.of(this.filename)), this.password);
+
+        final AtomicInteger decoded = new AtomicInteger();
+        final CertificateLoader loader = new CertificateLoader() {
+            @Override
+            Certificate decode(final InputStream inputStream) throws CertificateException {
+                decoded.incrementAndGet();
+                return super.decode(inputStream);
+            }
+        };
+        final RunReport report = new RunReport(this.filename);
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password, false, true, loader, new Log(Log.Level.QUIET), report);
+        assertEquals(initial.getFingerprint("debian:test-ca-1.crt"), keystore.getFingerprint("debian:test-ca-1.crt"));
+        keystore.deleteAlias("debian:spi.crt");
+        keystore.addAlias("local", this.certPath);
+        keystore.save();
+        // Only the certificate file added
+        assertEquals(1, decoded.get());
+
+        final KeyStore after = KeyStore.getInstance("JKS");
+        after.load(Files.newInputStream(Path.of(this.filename)), this.password);
+        assertEquals(List.of("debian:test-ca-1.crt", "debian:test-ca-2.crt", "local"), Collections.list(after.aliases()).stream().sorted().collect(Collectors.toList()));
+        assertEquals(before.getCreationDate("debian:test-ca-1.crt"), after.getCreationDate("debian:test-ca-1.crt"));
+        assertEquals(before.getCertificate("debian:test-ca-2.crt"), after.getCertificate("debian:test-ca-2.crt"));
+
+        try {
+            new KeyStoreHandler(this.filename, "wrongpassword".toCharArray(), false, true, loader, new Log(Log.Level.QUIET), report);
+            fail();
+        } catch (InvalidKeystorePasswordException e) {
+            assertEquals("Cannot open Java keystore. Is the password correct?", e.getMessage());
+        }
+    }
+
+    /**
+     * A keystore saved as PKCS12 without MAC nor encryption loads without
+     * password, is detected as PKCS12 and converted back on request.
+     */
+    @Test
+    public void testPkcs12() throws Exception {
+        new File(this.filename).delete();
+        final KeyStoreHandler initial = new KeyStoreHandler(this.filename, this.password, false);
+        initial.setFormat(KeyStoreFormat.PKCS12);
+        initial.setPkcs12Iterations(0, 0);
+        initial.addAlias("debian:spi.crt", this.certPath);
+        initial.save();
+        assertEquals(KeyStoreFormat.PKCS12, KeyStoreFormat.detect(Files.readAllBytes(Path.of(this.filename))));
+
+        final KeyStore pkcs12 = KeyStore.getInstance("PKCS12");
+        pkcs12.load(Files.newInputStream(Path.of(this.filename)), null);
+        assertTrue(pkcs12.isCertificateEntry("debian:spi.crt"));
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password, false);
+        assertFalse(keystore.isDirty());
+        assertTrue(keystore.contains("debian:spi.crt"));
+        keystore.setFormat(KeyStoreFormat.JKS);
+        assertTrue(keystore.isDirty());
+        keystore.save();
+        assertEquals(KeyStoreFormat.JKS, KeyStoreFormat.detect(Files.readAllBytes(Path.of(this.filename))));
+        assertTrue(new KeyStoreHandler(this.filename, this.password, false).contains("debian:spi.crt"));
+    }
+
+    /**
+     * Expired certificates are skipped, or removed from the keystore, and
+     * reported as pruned.
+     */
+    @Test
+    public void testValidation() throws Exception {
+        new File(this.filename).delete();
+        final KeyStoreHandler initial = new KeyStoreHandler(this.filename, this.password, false);
+        initial.addAlias("debian:spi.crt", this.certPath);
+        initial.save();
+
+        final RunReport report = new RunReport(this.filename);
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password, false, new CertificateLoader(), new Log(Log.Level.QUIET), report);
+        keystore.setValidator(new CertificateValidator(ValidationPolicy.SKIP, true, true));
+        keystore.addAlias("local", this.certPath);
+        keystore.addAlias("debian:test-ca-1.crt", "./build/resources/test/test-ca-1.crt");
+        assertEquals(List.of("debian:spi.crt", "debian:test-ca-1.crt"), keystore.aliases().stream().sorted().collect(Collectors.toList()));
+        assertEquals(1, report.getPruned().size());
+        assertEquals("local", report.getPruned().get(0).getAlias());
+        assertEquals("skipped", report.getPruned().get(0).getAction());
+        assertEquals("expired on 2018-05-11T08:07:56Z", report.getPruned().get(0).getReason());
+
+        keystore.setValidator(new CertificateValidator(ValidationPolicy.REMOVE, true, true));
+        keystore.pruneInvalid();
+        assertEquals(List.of("debian:test-ca-1.crt"), keystore.aliases());
+        assertEquals(1, report.getRemoved());
+        assertTrue(report.toJson().contains("\"alias\": \"debian:spi.crt\""));
+
+        keystore.setValidator(new CertificateValidator(ValidationPolicy.WARN, false, false));
+        keystore.addAlias("local", this.certPath);
+        assertTrue(keystore.contains("local"));
+        assertEquals("warned", report.getPruned().get(2).getAction());
+    }
 }
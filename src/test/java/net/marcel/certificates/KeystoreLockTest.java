@@ -0,0 +1,86 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link KeystoreLock}.
+ */
+public class KeystoreLockTest {
+
+    private final Path keystore = Path.of("./build/resources/test/locked-store");
+    private final String password = "changeit";
+
+    /**
+     * Changes spooled while the keystore is locked are saved by the holder,
+     * in the same save as its own changes, unless they were spooled with
+     * other settings, and a waiter gets the lock once it is released. The
+     * empty spool directory does not stay behind.
+     */
+    @Test
+    public void testSpool() throws Exception {
+        Files.deleteIfExists(this.keystore);
+        final CountDownLatch acquired = new CountDownLatch(1);
+
+        final Path spooled;
+        try (KeystoreLock lock = KeystoreLock.tryAcquire(this.keystore)) {
+            assertNotNull(lock);
+            assertNull(KeystoreLock.tryAcquire(this.keystore));
+
+            final Thread waiter = new Thread(() -> {
+                try (KeystoreLock other = KeystoreLock.acquire(this.keystore)) {
+                    acquired.countDown();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            waiter.start();
+            assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+            final String settings = new UpdateCertificates.Options().settings();
+            spooled = KeystoreLock.spool(this.keystore, settings, List.of(CertificateChange.parse("+./build/resources/test/test-ca-2.crt").toLine()));
+            // Left to its waiter, it would not be validated by the holder
+            final Path other = KeystoreLock.spool(this.keystore, new UpdateCertificates.Options().validation(ValidationPolicy.REMOVE).settings(),
+                    List.of(CertificateChange.parse("+./build/resources/test/spi-cacert-2008.crt").toLine()));
+            assertEquals(List.of(spooled.toRealPath()), lock.spooled(settings).stream().map(p -> p.toAbsolutePath().normalize()).collect(Collectors.toList()));
+
+            final UpdateCertificates uc = new UpdateCertificates(this.keystore.toString(), this.password, false);
+            new TrustStore(uc).update(lock, u -> u.processChanges(new StringReader("+./build/resources/test/test-ca-1.crt\n")));
+            assertFalse(Files.exists(spooled));
+            assertTrue(lock.spooled(settings).isEmpty());
+            assertTrue(Files.exists(other));
+            Files.delete(other);
+        }
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        // Nothing left in it, the spool directory went with the lock
+        assertFalse(Files.exists(Path.of(this.keystore + ".spool")));
+
+        assertEquals(List.of("debian:test-ca-1.crt", "debian:test-ca-2.crt"),
+                new KeyStoreHandler(this.keystore.toString(), this.password.toCharArray(), false).aliases().stream().sorted().collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReloadingX509TrustManagerTest {
+
+    private final String filename = "./build/resources/test/reloading-store";
+    private final String password = "changeit";
+
+    /**
+     * Certificates saved to the keystore become trusted without building a
+     * new trust manager, and a rewrite of the same content keeps the
+     * delegate.
+     */
+    @Test
+    public void testReload() throws Exception {
+        new File(this.filename).delete();
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        keystore.addAlias("debian:test-ca-1.crt", "./build/resources/test/test-ca-1.crt");
+        keystore.save();
+
+        final X509Certificate first = (X509Certificate) new CertificateLoader().load("./build/resources/test/test-ca-1.crt");
+        final X509Certificate second = (X509Certificate) new CertificateLoader().load("./build/resources/test/test-ca-2.crt");
+        try (ReloadingX509TrustManager manager = ReloadingX509TrustManager.open(Path.of(this.filename), this.password, 20, 50)) {
+            assertEquals(1, manager.getAcceptedIssuers().length);
+            manager.checkServerTrusted(new X509Certificate[]{first}, "RSA");
+            assertThrows(CertificateException.class, () -> manager.checkServerTrusted(new X509Certificate[]{second}, "RSA"));
+
+            keystore.addAlias("debian:test-ca-2.crt", "./build/resources/test/test-ca-2.crt");
+            keystore.save();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (manager.getVersion() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(1, manager.getVersion());
+            assertEquals(2, manager.getAcceptedIssuers().length);
+            manager.checkServerTrusted(new X509Certificate[]{second}, "RSA");
+
+            // Same content under a new file : nothing to rebuild
+            final Path copy = Path.of(this.filename + ".copy");
+            Files.copy(Path.of(this.filename), copy, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(copy, Path.of(this.filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            assertFalse(manager.reload());
+            assertEquals(1, manager.getVersion());
+
+            // A broken file keeps the previous certificates
+            Files.write(Path.of(this.filename), new byte[]{1, 2, 3});
+            assertThrows(Exception.class, manager::reload);
+            assertNotNull(manager.getLastFailure());
+            assertEquals(2, manager.getAcceptedIssuers().length);
+        }
+    }
+}
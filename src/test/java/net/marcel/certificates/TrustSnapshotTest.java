@@ -0,0 +1,70 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrustSnapshotTest {
+
+    private final String filename = "./build/resources/test/snapshot-store";
+    private final char[] password = "changeit".toCharArray();
+
+    /**
+     * The snapshot written on save holds the trusted certificates of the
+     * keystore, found by alias and by fingerprint.
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        new File(this.filename).delete();
+        final Path snapshot = Path.of(this.filename + UpdateCertificates.SNAPSHOT_SUFFIX);
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password, false);
+        keystore.setSnapshot(snapshot);
+        keystore.addAlias("debian:test-ca-2.crt", "./build/resources/test/test-ca-2.crt");
+        keystore.addAlias("debian:spi.crt", "./build/resources/test/spi-cacert-2008.crt");
+        keystore.addAlias("debian:test-ca-1.crt", "./build/resources/test/test-ca-1.crt");
+        keystore.save();
+
+        final TrustSnapshot trust = TrustSnapshot.open(snapshot);
+        assertEquals(List.of("debian:spi.crt", "debian:test-ca-1.crt", "debian:test-ca-2.crt"), trust.aliases());
+        assertEquals(keystore.getFingerprint("debian:test-ca-1.crt"), trust.getFingerprint("DEBIAN:test-ca-1.crt"));
+        assertNull(trust.getCertificate("debian:missing.crt"));
+        assertEquals(new CertificateLoader().load("./build/resources/test/spi-cacert-2008.crt"), trust.getCertificate("debian:spi.crt"));
+        assertSame(trust.getCertificate("debian:spi.crt"), trust.getCertificate("debian:spi.crt"));
+        assertEquals("debian:test-ca-2.crt", trust.getAlias(trust.getCertificate("debian:test-ca-2.crt")));
+        assertEquals(3, trust.getTrustAnchors().size());
+
+        // Written again when missing, even though the keystore is unchanged
+        snapshot.toFile().delete();
+        keystore.save();
+        assertEquals(3, TrustSnapshot.open(snapshot).size());
+
+        try {
+            TrustSnapshot.of(ByteBuffer.wrap(new byte[]{0x43, 0x41, 0x54, 0x53, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0}));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Truncated trust snapshot", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package net.marcel.certificates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrustStoreTest {
+
+    private final Path keystore = Path.of("./build/resources/test/trust-store");
+    private final Path ca1 = Path.of("./build/resources/test/test-ca-1.crt");
+    private final Path ca2 = Path.of("./build/resources/test/test-ca-2.crt");
+
+    /**
+     * Readers see every update as a whole, and unchanged certificates are
+     * shared between snapshots.
+     */
+    @Test
+    public void testUpdate() throws Exception {
+        new File(this.keystore.toString()).delete();
+        final TrustStore store = TrustStore.open(this.keystore, "changeit", new UpdateCertificates.Options());
+        assertEquals(0, store.snapshot().size());
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger partial = new AtomicInteger();
+        final Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                final int size = store.snapshot().size();
+                if (size != 0 && size != 2) partial.incrementAndGet();
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20; i++) {
+            store.update(new TrustStore.Changes().add(this.ca1).add(this.ca2));
+            store.update(new TrustStore.Changes().remove(this.ca1).remove(this.ca2));
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, partial.get());
+
+        final TrustStore.Snapshot first = store.update(new TrustStore.Changes().add(this.ca1).add("Local", Files.readAllBytes(this.ca2)));
+        assertEquals(List.of("debian:test-ca-1.crt", "local"), first.aliases());
+        assertNotNull(first.getFingerprint("LOCAL"));
+        assertEquals(2, first.getTrustAnchors().size());
+
+        final TrustStore.Snapshot second = store.update(new TrustStore.Changes().removeAlias("local"));
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(List.of("debian:test-ca-1.crt"), second.aliases());
+        assertSame(first.getCertificate("debian:test-ca-1.crt"), second.getCertificate("debian:test-ca-1.crt"));
+        assertEquals(2, first.size());
+
+        // Saved, another instance reads the same content
+        assertEquals(second.aliases(), TrustStore.open(this.keystore, "changeit", new UpdateCertificates.Options()).snapshot().aliases());
+    }
+
+    /**
+     * Every update of a long-lived store is reported on its own.
+     */
+    @Test
+    public void testReportPerUpdate() throws Exception {
+        new File(this.keystore.toString()).delete();
+        final TrustStore store = TrustStore.open(this.keystore, "changeit", new UpdateCertificates.Options());
+        store.update(new TrustStore.Changes().add(this.ca1));
+        assertEquals(1, store.getReport().getAdded());
+        store.update(new TrustStore.Changes().add(this.ca2));
+        assertEquals(1, store.getReport().getAdded());
+        store.refresh();
+        assertEquals(0, store.getReport().getAdded());
+    }
+}
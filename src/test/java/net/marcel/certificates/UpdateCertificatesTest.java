@@ -21,8 +21,25 @@ package net.marcel.certificates;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -169,4 +186,242 @@ public class UpdateCertificatesTest {
         assertFalse(new KeyStoreHandler(this.filename, this.password.toCharArray(), false)
                 .contains(CERT_ALIAS));
     }
+
+    /**
+     * Same changes as {@link #testProcessChanges()} but decoded by a worker
+     * pool : they must still be applied in input order.
+     */
+    @Test
+    public void testProcessChangesParallel() throws Exception {
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, false, 4);
+        uc.processChanges(new StringReader(ADD_CERT_CMD + "\n" + INVALID_CERT_CMD + "\n" + REMOVE_CERT_CMD + "\n"
+                + "+./build/resources/test/spi-cacert-2008-with-comment.crt\n+/usr/share/ca-certificates/null.crt\n"));
+        uc.finish();
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        assertFalse(keystore.contains(CERT_ALIAS));
+        assertTrue(keystore.contains("debian:spi-cacert-2008-with-comment.crt"));
+        assertFalse(keystore.contains("debian:null.crt"));
+    }
+
+    /**
+     * Reconcile against a directory : stale "debian:" entries are removed,
+     * other entries are kept, even when named like a stale file, and a second run changes nothing.
+     */
+    @Test
+    public void testReconcile() throws Exception {
+        final Path directory = Path.of("./build/resources/test/reconcile");
+        Files.createDirectories(directory);
+        Files.copy(Path.of(CERT_PATH), directory.resolve("spi.crt"), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(Path.of("./build/resources/test/spi-cacert-2008-with-comment.crt"), directory.resolve("comment.pem"), StandardCopyOption.REPLACE_EXISTING);
+
+        final KeyStoreHandler initial = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        initial.addAlias("debian:gone.crt", CERT_PATH);
+        initial.addAlias("local", CERT_PATH);
+        initial.addAlias("gone.crt", CERT_PATH);
+        initial.save();
+
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, false, 2);
+        uc.reconcile(List.of(directory));
+        uc.finish();
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        assertEquals(List.of("debian:comment.pem", "debian:spi.crt", "gone.crt", "local"), keystore.aliases().stream().sorted().collect(Collectors.toList()));
+
+        assertTrue(new File(this.filename).setLastModified(1000L));
+        final UpdateCertificates again = new UpdateCertificates(this.filename, this.password, false);
+        again.reconcile(List.of(directory));
+        again.finish();
+        assertEquals(1000L, new File(this.filename).lastModified());
+    }
+
+    /**
+     * Every certificate of a bundle is added, and a second bundle replaces
+     * the entries of the first one.
+     */
+    @Test
+    public void testBundle() throws Exception {
+        final String first = Files.readString(Path.of("./build/resources/test/test-ca-1.crt"));
+        final String second = Files.readString(Path.of("./build/resources/test/test-ca-2.crt"));
+
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, false);
+        uc.processBundle("bundle", new StringReader("# comment\n" + first + "\n" + second));
+        uc.finish();
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        final List<String> aliases = keystore.aliases().stream().sorted().collect(Collectors.toList());
+        assertEquals(2, aliases.size());
+        assertTrue(aliases.get(0).startsWith("bundle:test-ca-1:"));
+        assertTrue(aliases.get(1).startsWith("bundle:test-ca-2:"));
+
+        final UpdateCertificates replace = new UpdateCertificates(this.filename, this.password, false, 2);
+        replace.processBundle("bundle", new StringReader(second + "-----BEGIN CERTIFICATE-----\n!!!\n-----END CERTIFICATE-----\n"));
+        replace.finish();
+
+        assertEquals(List.of(aliases.get(1)), new KeyStoreHandler(this.filename, this.password.toCharArray(), false).aliases());
+    }
+
+    /**
+     * The JSON report counts the applied changes.
+     */
+    @Test
+    public void testReport() throws Exception {
+        final Path report = Path.of("./build/resources/test/report.json");
+        final UpdateCertificates.Options options = new UpdateCertificates.Options().report(report);
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, options);
+        uc.processChanges(new StringReader(ADD_CERT_CMD + "\n" + ADD_CERT_CMD + "\n+/usr/share/ca-certificates/null.crt\n"));
+        uc.finish();
+
+        final String json = Files.readString(report);
+        assertTrue(json.contains("\"added\": 1,"));
+        assertTrue(json.contains("\"skipped\": 1,"));
+        assertTrue(json.contains("\"failed\": 1,"));
+        assertTrue(json.contains("\"entries\": 1,"));
+        assertTrue(json.contains("\"saved\": true,"));
+    }
+
+    /**
+     * A streamed rebuild writes a keystore the JDK loads, with the last
+     * change of every alias applied.
+     */
+    @Test
+    public void testStream() throws Exception {
+        final KeyStoreHandler initial = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        initial.addAlias("local", CERT_PATH);
+        initial.save();
+
+        final UpdateCertificates.Options options = new UpdateCertificates.Options().clear(true).stream(true);
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, options);
+        uc.processChanges(new StringReader(ADD_CERT_CMD + "\n+./build/resources/test/test-ca-1.crt\n" + REMOVE_CERT_CMD + "\n"
+                + INVALID_CERT_CMD + "\n+./build/resources/test/test-ca-2.crt\n+/usr/share/ca-certificates/null.crt\n"));
+        uc.finish();
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        assertEquals(List.of("debian:test-ca-1.crt", "debian:test-ca-2.crt"), keystore.aliases().stream().sorted().collect(Collectors.toList()));
+        assertEquals(Fingerprint.of(Pem.firstCertificate(Files.readAllBytes(Path.of("./build/resources/test/test-ca-1.crt")))), keystore.getFingerprint("debian:test-ca-1.crt"));
+
+        try {
+            new KeyStoreHandler(this.filename, "wrong".toCharArray(), false);
+            fail();
+        } catch (InvalidKeystorePasswordException e) {
+            // The integrity hash covers the password
+        }
+    }
+
+    /**
+     * The same changes are applied to every target, each with its own
+     * password and format, and a target linked to another is updated once.
+     */
+    @Test
+    public void testUpdateAll() throws Exception {
+        final Path jvm = Path.of("./build/resources/test/jvm");
+        Files.createDirectories(jvm.resolve("jdk-8/jre/lib/security"));
+        Files.createDirectories(jvm.resolve("jdk-11/lib/security"));
+        Files.createDirectories(jvm.resolve("jdk-14/lib/security"));
+        final Path shared = jvm.resolve("jdk-11/lib/security/cacerts");
+        final Path legacy = jvm.resolve("jdk-8/jre/lib/security/cacerts");
+        Files.deleteIfExists(jvm.resolve("jdk-14/lib/security/cacerts"));
+        Files.createSymbolicLink(jvm.resolve("jdk-14/lib/security/cacerts"), shared.toAbsolutePath());
+        final Path pkcs12 = Path.of("./build/resources/test/store.p12");
+        Files.deleteIfExists(pkcs12);
+        for (final Path cacerts : List.of(shared, legacy)) {
+            Files.deleteIfExists(cacerts);
+            new KeyStoreHandler(cacerts.toString(), this.password.toCharArray(), false).save();
+        }
+
+        final List<KeystoreTarget> targets = new ArrayList<>(KeystoreTarget.discover(jvm, this.password));
+        assertEquals(3, targets.size());
+        final Path passwordFile = Path.of("./build/resources/test/store.p12.password");
+        Files.writeString(passwordFile, "secret\n");
+        targets.add(KeystoreTarget.parse(pkcs12 + ":pkcs12:@" + passwordFile, this.password));
+        assertEquals("secret", targets.get(3).getPassword());
+        assertEquals(System.getenv("PATH"), KeystoreTarget.parse(pkcs12 + "::env:PATH", this.password).getPassword());
+        final List<KeystoreTarget> distinct = KeystoreTarget.distinct(targets);
+        assertEquals(3, distinct.size());
+
+        final List<CertificateChange> changes = List.of(CertificateChange.parse(ADD_CERT_CMD), CertificateChange.parse("+./build/resources/test/test-ca-1.crt"));
+        final Path report = Path.of("./build/resources/test/report.json");
+        assertTrue(UpdateCertificates.updateAll(distinct, new UpdateCertificates.Options().report(report), uc -> uc.applyAll(changes)));
+
+        for (final Path cacerts : List.of(shared, legacy)) {
+            assertTrue(new KeyStoreHandler(cacerts.toString(), this.password.toCharArray(), false).contains(CERT_ALIAS));
+        }
+        assertEquals(KeyStoreFormat.PKCS12, KeyStoreFormat.detect(Files.readAllBytes(pkcs12)));
+        assertTrue(new KeyStoreHandler(pkcs12.toString(), "secret".toCharArray(), false).contains("debian:test-ca-1.crt"));
+        assertTrue(Files.readString(report).startsWith("[\n{"));
+    }
+
+    /**
+     * Changes cancelling each other out are dropped before any decoding.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        final AtomicInteger decoded = new AtomicInteger();
+        final CertificateLoader loader = new CertificateLoader() {
+            @Override
+            Certificate decode(final InputStream inputStream) throws CertificateException {
+                decoded.incrementAndGet();
+                return super.decode(inputStream);
+            }
+        };
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, new UpdateCertificates.Options(), loader);
+        uc.processChanges(new StringReader(ADD_CERT_CMD + "\n" + REMOVE_CERT_CMD + "\n" + ADD_CERT_CMD + "\n"
+                + "+./build/resources/test/test-ca-1.crt\n-./build/resources/test/test-ca-1.crt\n"));
+        uc.finish();
+
+        assertEquals(1, decoded.get());
+        assertEquals(List.of(CERT_ALIAS), new KeyStoreHandler(this.filename, this.password.toCharArray(), false).aliases());
+    }
+
+    /**
+     * Framed input carries the certificates, DER or PEM, with or without
+     * alias, and unknown frames are skipped.
+     */
+    @Test
+    public void testFramed() throws Exception {
+        final byte[] der = Pem.firstCertificate(Files.readAllBytes(Path.of("./build/resources/test/test-ca-1.crt")));
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(frames);
+        frame(out, FramedInput.ADD, "local", der);
+        frame(out, (byte) 'x', "ignored", der);
+        frame(out, FramedInput.ADD, "", Files.readAllBytes(Path.of("./build/resources/test/test-ca-2.crt")));
+        frame(out, FramedInput.ADD, CERT_ALIAS, Files.readAllBytes(Path.of(CERT_PATH)));
+        frame(out, FramedInput.REMOVE, CERT_ALIAS, new byte[0]);
+
+        final UpdateCertificates uc = new UpdateCertificates(this.filename, this.password, false, 2);
+        uc.processFramed(Channels.newChannel(new ByteArrayInputStream(frames.toByteArray())));
+        uc.finish();
+
+        final KeyStoreHandler keystore = new KeyStoreHandler(this.filename, this.password.toCharArray(), false);
+        final List<String> aliases = keystore.aliases().stream().sorted().collect(Collectors.toList());
+        assertEquals(2, aliases.size());
+        assertTrue(aliases.get(0).startsWith(CertificateChange.BUNDLE_ALIAS_PREFIX + "test-ca-2:"));
+        assertEquals("local", aliases.get(1));
+        assertEquals(Fingerprint.of(der), keystore.getFingerprint("local"));
+
+        try {
+            final byte[] truncated = Arrays.copyOf(frames.toByteArray(), 20);
+            new UpdateCertificates(this.filename, this.password, false).processFramed(Channels.newChannel(new ByteArrayInputStream(truncated)));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Truncated frame at byte 0", e.getMessage());
+        }
+
+        try {
+            final byte[] corrupt = {FramedInput.ADD, 0, 0, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0};
+            new UpdateCertificates(this.filename, this.password, false).processFramed(Channels.newChannel(new ByteArrayInputStream(corrupt)));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Invalid payload length 2147483632 at byte 0", e.getMessage());
+        }
+    }
+
+    private static void frame(final DataOutputStream out, final byte type, final String alias, final byte[] payload) throws IOException {
+        final byte[] encodedAlias = alias.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        out.writeShort(encodedAlias.length);
+        out.write(encodedAlias);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
 }